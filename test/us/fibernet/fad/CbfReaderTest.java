@@ -0,0 +1,165 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * PatternReader.readCbf on byte-offset data written here, covering each
+ * escape: 0x80 to a 16-bit delta, 0x8000 to a 32-bit one and 0x80000000
+ * to a 64-bit one.
+ */
+public class CbfReaderTest {
+
+    @Test
+    public void decodesEveryDeltaWidth() throws IOException {
+        // deltas from the previous pixel in the comments
+        int[] pixels = {
+            0, 1, 128,        // 0, +1, +127: 8 bits
+            0, 32767,         // -128 escaped by 0x80 to 16 bits; +32767 in 16 bits
+            -1, 2147483646,   // -32768 escaped by 0x8000 to 32 bits; +2^31-1 in 32 bits
+            -2, 2147483646,   // -2^31 escaped by 0x80000000 to 64 bits; +2^31 in 64 bits
+            2147483645        // -1: 8 bits again
+        };
+        int[] decoded = read(pixels, pixels.length, 1);
+        assertArrayEquals(pixels, decoded);
+    }
+
+    @Test
+    public void decodesRowAfterRow() throws IOException {
+        int w = 7, h = 5;
+        int[] pixels = new int[w * h];
+        for(int i=0; i<pixels.length; i++) {
+            pixels[i] = (i % 3 == 0 ? -1 : 1) * (i * i * i * 997);
+        }
+        assertArrayEquals(pixels, read(pixels, w, h));
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        int[] pixels = { 0, 40000, 5, 6 };
+        byte[] cbf = cbf(encode(pixels), 2, 2);
+        byte[] cut = new byte[cbf.length - 3];
+        System.arraycopy(cbf, 0, cut, 0, cut.length);
+        assertNull(PatternReader.readCbf(write(cut).getPath()));
+    }
+
+    private static int[] read(int[] pixels, int w, int h) throws IOException {
+        PatternImage image = PatternReader.readCbf(write(cbf(encode(pixels), w, h)).getPath());
+        assertNotNull(image);
+        assertEquals(w, image.getWidth());
+        assertEquals(h, image.getHeight());
+        int[] decoded = new int[w * h];
+        for(int y=0; y<h; y++) {
+            for(int x=0; x<w; x++) {
+                decoded[y * w + x] = image.get(x, y);
+            }
+        }
+        return decoded;
+    }
+
+    /*
+     * byte-offset compression as the CBF library writes it: the shortest
+     * width that holds the delta and is not its escape value
+     */
+    private static byte[] encode(int[] pixels) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long prev = 0;
+        for(int p : pixels) {
+            long d = p - prev;
+            prev = p;
+            if(d > Byte.MIN_VALUE && d <= Byte.MAX_VALUE) {
+                out.write((int) d);
+                continue;
+            }
+            out.write(0x80);
+            if(d > Short.MIN_VALUE && d <= Short.MAX_VALUE) {
+                little(out, d, 2);
+                continue;
+            }
+            little(out, Short.MIN_VALUE, 2);
+            if(d > Integer.MIN_VALUE && d <= Integer.MAX_VALUE) {
+                little(out, d, 4);
+                continue;
+            }
+            little(out, Integer.MIN_VALUE, 4);
+            little(out, d, 8);
+        }
+        return out.toByteArray();
+    }
+
+    private static void little(ByteArrayOutputStream out, long v, int n) {
+        for(int i=0; i<n; i++) {
+            out.write((int) (v >> (8 * i)));
+        }
+    }
+
+    private static byte[] cbf(byte[] data, int w, int h) throws IOException {
+        String header = "###CBF: VERSION 1.5\r\n"
+                      + "data_test\r\n\r\n"
+                      + "_array_data.data\r\n"
+                      + ";\r\n"
+                      + "--CIF-BINARY-FORMAT-SECTION--\r\n"
+                      + "Content-Type: application/octet-stream;\r\n"
+                      + "     conversions=\"x-CBF_BYTE_OFFSET\"\r\n"
+                      + "X-Binary-Size: " + data.length + "\r\n"
+                      + "X-Binary-Element-Type: \"signed 32-bit integer\"\r\n"
+                      + "X-Binary-Size-Fastest-Dimension: " + w + "\r\n"
+                      + "X-Binary-Size-Second-Dimension: " + h + "\r\n"
+                      + "\r\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.getBytes("US-ASCII"));
+        out.write(new byte[] { 0x0C, 0x1A, 0x04, (byte) 0xD5 });
+        out.write(data);
+        return out.toByteArray();
+    }
+
+    private static File write(byte[] bytes) throws IOException {
+        File f = File.createTempFile("fad", ".cbf");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+        return f;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * CenterRefiner on synthetic fiber patterns with a known beam center and
+ * meridian tilt: layer lines and rings, four-fold symmetric about the tilted
+ * meridian, with noise and a masked strip.
+ */
+public class CenterRefinerTest {
+
+    private static final int W = 512, H = 512;
+
+    @Test
+    public void recoversCenterAndTilt() {
+
+        CenterRefiner refiner = new CenterRefiner(20, 200);
+        CenterRefiner.Solution s = refiner.refine(pattern(270.3, 247.8, 2.5, 1), mask());
+
+        assertEquals(270.3, s.xc, 0.25);
+        assertEquals(247.8, s.yc, 0.25);
+        assertEquals(2.5, s.tilt, 0.05);
+        assertSame(s, refiner.getLast());
+    }
+
+    @Test
+    public void followsDriftingBeam() {
+
+        CenterRefiner refiner = new CenterRefiner(20, 200);
+        refiner.refine(pattern(270.3, 247.8, 2.5, 1), mask());
+
+        // within the warm range of the previous frame
+        CenterRefiner.Solution s = refiner.refine(pattern(271.6, 247.1, 2.7, 2), mask());
+
+        assertEquals(271.6, s.xc, 0.25);
+        assertEquals(247.1, s.yc, 0.25);
+        assertEquals(2.7, s.tilt, 0.05);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBand() {
+        new CenterRefiner(200, 200);
+    }
+
+    /*
+     * rings fading out from the center, brighter towards the equator, and a
+     * layer line 60 pixels up and down the meridian; Gaussian noise of 3
+     */
+    private static PatternImage pattern(double xc, double yc, double tilt, long seed) {
+
+        Random random = new Random(seed);
+        double s = Math.sin(Math.toRadians(tilt)), c = Math.cos(Math.toRadians(tilt));
+        PatternImage image = PatternImage.create(W, H);
+        for(int y=0; y<H; y++) {
+            for(int x=0; x<W; x++) {
+                double e = (x - xc) * c - (y - yc) * s;
+                double m = (x - xc) * s + (y - yc) * c;
+                double r = Math.hypot(e, m);
+                double v = 1000 * Math.exp(-r / 150) * (1 + 0.5 * Math.cos(r / 6))
+                         * (1 + Math.cos(3 * Math.atan2(Math.abs(e), Math.abs(m)))
+                            + 0.3 * Math.exp(-Math.abs(Math.abs(m) - 60) / 5));
+                image.set(x, y, (int) Math.round(v + 3 * random.nextGaussian()));
+            }
+        }
+        return image;
+    }
+
+    /*
+     * a beam stop shadow: a vertical strip off center
+     */
+    private static PatternImage mask() {
+        PatternImage mask = PatternImage.create(W, H);
+        for(int y=0; y<H; y++) {
+            for(int x=300; x<320; x++) {
+                mask.set(x, y, 1);
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * BZip2InputStream and XZInputStream on files written by the bzip2 and xz
+ * programs from content() and noise(). The fixtures in data/ were made with
+ *
+ *   bzip2 -1 < content > blocks.bz2                      (three 100k blocks)
+ *   bzip2 < content[0, 120000) > a; bzip2 < content[120000, ...) > b
+ *   cat a b > streams.bz2
+ *   xz --block-size=65536 --check=crc64 < content > blocks.xz
+ *   xz --check=crc32 < content[0, 120000) > a; xz --check=sha256 < content[120000, ...) > b
+ *   cat a <8 zero bytes> b > streams.xz                  (stream padding between)
+ *   xz < noise > noise.xz
+ *
+ * Truncated input must end in an IOException, and so must corrupted input
+ * unless it still decodes to the original.
+ */
+public class CompressedStreamTest {
+
+    @Test
+    public void bzip2Blocks() throws IOException {
+        assertArrayEquals(content(), bunzip2(fixture("blocks.bz2")));
+    }
+
+    @Test
+    public void bzip2Streams() throws IOException {
+        assertArrayEquals(content(), bunzip2(fixture("streams.bz2")));
+    }
+
+    @Test
+    public void xzBlocks() throws IOException {
+        assertArrayEquals(content(), unxz(fixture("blocks.xz")));
+    }
+
+    @Test
+    public void xzStreamsAndPadding() throws IOException {
+        assertArrayEquals(content(), unxz(fixture("streams.xz")));
+    }
+
+    @Test
+    public void xzUncompressedChunks() throws IOException {
+        assertArrayEquals(noise(), unxz(fixture("noise.xz")));
+    }
+
+    @Test
+    public void patternStreamsReadAll() throws IOException {
+        for(String name : new String[] { "streams.bz2", "streams.xz" }) {
+            File f = file(name, fixture(name));
+            assertArrayEquals(content(), PatternStreams.readAll(f.getPath()));
+        }
+    }
+
+    @Test
+    public void truncatedInputFails() throws IOException {
+        for(String name : new String[] { "blocks.bz2", "blocks.xz" }) {
+            byte[] data = fixture(name);
+            for(int n = 1; n < data.length; n += n < data.length - 32 ? data.length / 97 : 1) {
+                assertFails(name, Arrays.copyOf(data, n));
+            }
+        }
+        // a multi-stream file cut inside its second stream
+        for(String name : new String[] { "streams.bz2", "streams.xz" }) {
+            byte[] data = fixture(name);
+            int second = secondStream(data, name);
+            for(int n = second + 1; n < data.length; n += (data.length - second) / 41) {
+                assertFails(name, Arrays.copyOf(data, n));
+            }
+        }
+    }
+
+    @Test
+    public void corruptedInputFails() throws IOException {
+        for(String name : new String[] { "blocks.bz2", "streams.bz2", "blocks.xz", "streams.xz",
+                                          "noise.xz" }) {
+            byte[] data = fixture(name);
+            byte[] expected = name.startsWith("noise") ? noise() : content();
+            for(int i = 0; i < data.length; i += i < 64 ? 1 : data.length / 89) {
+                assertFailsOrSame(name + " at " + i, data, i, expected);
+            }
+            assertFailsOrSame(name + " at end", data, data.length - 1, expected);
+        }
+    }
+
+    @Test
+    public void badGzipHeaderFails() throws IOException {
+        File f = file("bad.gz", new byte[] { 'n', 'o', 't', ' ', 'g', 'z', 'i', 'p' });
+        try {
+            PatternStreams.open(f.getPath()).close();
+        }
+        catch(IOException e) {
+            assertTrue(e.getMessage().startsWith(f.getPath()));
+            return;
+        }
+        throw new AssertionError("bad gzip header accepted");
+    }
+
+    /**
+     * Lines ending in one of four words picked pseudo-randomly
+     */
+    static byte[] content() {
+        String[] words = { "meridian", "equator", "layer line", "streak" };
+        StringBuilder sb = new StringBuilder();
+        long s = 12345;
+        while(sb.length() < 250000) {
+            s = s * 6364136223846793005L + 1442695040888963407L;
+            sb.append("intensity along the ").append(words[(int) (s >>> 62)]).append('\n');
+        }
+        byte[] text = new byte[sb.length()];
+        for(int i = 0; i < text.length; i++) {
+            text[i] = (byte) sb.charAt(i);
+        }
+        return text;
+    }
+
+    /**
+     * Pseudo-random bytes, which xz stores as uncompressed LZMA2 chunks
+     */
+    static byte[] noise() {
+        byte[] b = new byte[3000];
+        long s = 12345;
+        for(int i = 0; i < b.length; i++) {
+            s = s * 6364136223846793005L + 1442695040888963407L;
+            b[i] = (byte) (s >>> 56);
+        }
+        return b;
+    }
+
+    private static void assertFails(String name, byte[] data) {
+        try {
+            if(name.contains(".bz2")) {
+                bunzip2(data);
+            }
+            else {
+                unxz(data);
+            }
+        }
+        catch(IOException e) {
+            return;
+        }
+        throw new AssertionError(name + " (" + data.length + " bytes) decoded without error");
+    }
+
+    /**
+     * Inverting a byte the format leaves redundant, such as the code length
+     * of an unused Huffman symbol, may decode to the same data; bzip2 itself
+     * accepts those. Any other change must fail with an IOException.
+     */
+    private static void assertFailsOrSame(String name, byte[] data, int i, byte[] expected) {
+        byte[] bad = data.clone();
+        bad[i] ^= 0xff;
+        byte[] decoded;
+        try {
+            decoded = name.contains(".bz2") ? bunzip2(bad) : unxz(bad);
+        }
+        catch(IOException e) {
+            return;
+        }
+        if(!Arrays.equals(expected, decoded)) {
+            throw new AssertionError(name + " decoded to wrong data without error");
+        }
+    }
+
+    private static byte[] bunzip2(byte[] data) throws IOException {
+        return drain(new BZip2InputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] unxz(byte[] data) throws IOException {
+        return drain(new XZInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] drain(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[7000];   // not a divisor of any block size
+            int n;
+            while((n = in.read(buf, 0, buf.length)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return  offset of the second stream's header in a two-stream fixture
+     */
+    private static int secondStream(byte[] data, String name) {
+        // stream header, and for bzip2 the first block's magic after it
+        byte[] magic = name.endsWith(".bz2") ? new byte[] { 'B', 'Z', 'h', '9', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59 }
+                                             : new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 };
+        for(int i = data.length - magic.length; i > 0; i--) {
+            if(Arrays.equals(magic, Arrays.copyOfRange(data, i, i + magic.length))) {
+                return i;
+            }
+        }
+        throw new AssertionError(name + ": no second stream");
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        InputStream in = CompressedStreamTest.class.getResourceAsStream("data/" + name);
+        assertNotNull(name, in);
+        return drain(in);
+    }
+
+    private static File file(String name, byte[] data) throws IOException {
+        File f = File.createTempFile("fad", name);
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        }
+        finally {
+            out.close();
+        }
+        return f;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * A PLR file written here parsed by DataPlr.parseData(BufferedReader),
+ * parseData(ByteBuffer) and parseDataParallel(ByteBuffer): all give back the
+ * header, intensities and bin counts written.
+ */
+public class DataPlrParseTest {
+
+    private static final int NR = 40, NTHET = 91;
+
+    @Test
+    public void fixedWidthRoundTrip() throws Exception {
+        checkAllParsers(plr(false), false);
+    }
+
+    @Test
+    public void variableWidthRoundTrip() throws Exception {
+        // wide bin counts shift the records, so the parallel parser falls back
+        checkAllParsers(plr(true), true);
+    }
+
+    @Test
+    public void truncatedDataFails() throws Exception {
+        String text = plr(false);
+        text = text.substring(0, text.length() / 2);
+        assertFalse(new DataPlr().parseData(ByteBuffer.wrap(text.getBytes("US-ASCII"))));
+        assertFalse(new DataPlr().parseDataParallel(ByteBuffer.wrap(text.getBytes("US-ASCII"))));
+    }
+
+    @Test
+    public void indexSaturatesBinCounts() throws Exception {
+        // counts above 32767 in every 17th record (variable width rows), then
+        // in every record (fixed width rows)
+        for(int every : new int[] { 17, 1 }) {
+            File src = File.createTempFile("fad", ".plr");
+            src.deleteOnExit();
+            FileOutputStream out = new FileOutputStream(src);
+            try {
+                out.write(plr(40000, every).getBytes("US-ASCII"));
+            }
+            finally {
+                out.close();
+            }
+
+            DataPlrIndex index = DataPlrIndex.open(src.getPath());
+            assertEquals(NR, index.NR());
+            for(int i=0; i<NR; i++) {
+                DataPlrIndex.Row row = index.getRow(i);
+                for(int j=0; j<NTHET; j++) {
+                    assertEquals((float) intensity(i, j), row.intensity[j], 0);
+                    assertEquals(Math.min(Short.MAX_VALUE, binCount(i, j, 40000, every)),
+                                 row.binCount[j]);
+                }
+            }
+        }
+    }
+
+    private static void checkAllParsers(String text, boolean wideCounts) throws Exception {
+
+        DataPlr lines = new DataPlr();
+        assertTrue(lines.parseData(new BufferedReader(new StringReader(text))));
+        DataPlr bytes = new DataPlr();
+        assertTrue(bytes.parseData(ByteBuffer.wrap(text.getBytes("US-ASCII"))));
+        DataPlr parallel = new DataPlr();
+        assertTrue(parallel.parseDataParallel(ByteBuffer.wrap(text.getBytes("US-ASCII"))));
+
+        for(DataPlr dp : new DataPlr[] { lines, bytes, parallel }) {
+            assertEquals(NR, dp.NR);
+            assertEquals(NTHET, dp.NTHET);
+            assertEquals(50.0, dp.RMIN, 0);
+            assertEquals(0.05, dp.DR, 1e-9);
+            assertEquals(93.1, dp.SFD, 1e-9);
+            assertEquals(6.0, dp.REPEAT, 1e-9);
+            for(int i=0; i<NR; i++) {
+                for(int j=0; j<NTHET; j++) {
+                    assertEquals((float) intensity(i, j), dp.getIntensity(i, j), 0);
+                    assertEquals(binCount(i, j, wideCounts ? 1000 : 0, 17), dp.getBinCount(i, j));
+                }
+            }
+        }
+        assertArrayEquals(lines.getIntensities(), bytes.getIntensities(), 0);
+        assertArrayEquals(lines.getIntensities(), parallel.getIntensities(), 0);
+        assertArrayEquals(lines.getBinCounts(), bytes.getBinCounts());
+        assertArrayEquals(lines.getBinCounts(), parallel.getBinCounts());
+    }
+
+    /*
+     * a PLR file of NR x NTHET records in the documented format; also used
+     * by PatternSidecarTest
+     */
+    static String plr(boolean wideCounts) {
+        return plr(wideCounts ? 1000 : 0, 17);
+    }
+
+    /*
+     * as plr(boolean), with extra added to the bin count of every every-th record
+     */
+    private static String plr(int extra, int every) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("IFV,NULB,RMIN,NR,WR,DR,XW,THMIN,DTHET,NTHET,AME,BME,SFD,IFOG,NGEOM,IOPT,IQ,SFD,REPEAT\n");
+        sb.append(String.format(Locale.US, DataPlr.headerFormat, 0, 1, 50.0, NR, 1.0, 0.05, 0.5,
+                0.0, 1.0, NTHET, "ab", "cd", 93.1, 0, 1, 0, 0, 0, 0, 0, 93.1, 6.0)).append('\n');
+        sb.append(DataPlr.headerTerm).append('\n');
+        for(int i=0; i<NR; i++) {
+            for(int j=0; j<NTHET; j++) {
+                sb.append(String.format(Locale.US, "%6.1f%12.1f    %1d    0.000\n",
+                        (double) j, intensity(i, j), binCount(i, j, extra, every)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static double intensity(int i, int j) {
+        return ((i * 7919 + j * 104729) % 1000000) / 10.0;
+    }
+
+    private static int binCount(int i, int j, int extra, int every) {
+        return ((i * NTHET + j) % every == 0 ? extra : 0) + (i + j) % 10;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * DirectPatternImage memory access: withBuffer sees the pixels of a view at
+ * its indexes, and close neither frees memory under a running task nor
+ * lets a closed image be reached.
+ */
+public class DirectPatternImageTest {
+
+    @Test
+    public void withBufferSeesViewPixels() {
+
+        for(final PatternReader.PixelType type : new PatternReader.PixelType[] {
+                PatternReader.PixelType.INT, PatternReader.PixelType.USHORT }) {
+            DirectPatternImage image = new DirectPatternImage(6, 4, type);
+            image.set(3, 2, 40000);
+            final PatternImage view = image.region(1, 1, 4, 3);
+            final int[] seen = new int[1];
+            ((DirectPatternImage) view).withBuffer(new DirectPatternImage.BufferTask() {
+                public void run(ByteBuffer buf) {
+                    int i = view.index(2, 1) * type.size();
+                    seen[0] = type == PatternReader.PixelType.INT ? buf.getInt(i) : buf.getChar(i);
+                }
+            });
+            assertEquals(40000, seen[0]);
+            image.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedImageUnreachable() {
+        DirectPatternImage image = new DirectPatternImage(2, 2, PatternReader.PixelType.INT);
+        ((DirectPatternImage) image.region(0, 0, 1, 1)).close();   // closes all views
+        image.withBuffer(new DirectPatternImage.BufferTask() {
+            public void run(ByteBuffer buf) {
+            }
+        });
+    }
+
+    @Test
+    public void closeWaitsForRunningTask() throws Exception {
+
+        final DirectPatternImage image = new DirectPatternImage(2, 2, PatternReader.PixelType.INT);
+        final CountDownLatch started = new CountDownLatch(1);
+        final boolean[] done = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                image.withBuffer(new DirectPatternImage.BufferTask() {
+                    public void run(ByteBuffer buf) {
+                        started.countDown();
+                        try {
+                            Thread.sleep(200);
+                        }
+                        catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        buf.getInt(0);
+                        done[0] = true;
+                    }
+                });
+            }
+        });
+        reader.start();
+        started.await();
+        image.close();
+        assertTrue(done[0]);
+        assertTrue(image.isClosed());
+        reader.join();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The geometry tables of PolarIndexMap, PolarRegridder and ReciprocalGeometry
+ * are charged by size against one byte budget.
+ */
+public class GeometryCacheTest {
+
+    @Test
+    public void boundedByBytes() {
+        long budget = GeometryCache.getBudget();
+        try {
+            clearAll();
+            GeometryCache.setBudget(1000);
+            Object a = new Object(), b = new Object(), c = new Object();
+            GeometryCache.put("t|a", a, 400);
+            GeometryCache.put("t|b", b, 400);
+            assertSame(a, GeometryCache.get("t|a"));     // b is now least recently used
+            GeometryCache.put("t|c", c, 400);
+            assertNull(GeometryCache.get("t|b"));
+            assertSame(a, GeometryCache.get("t|a"));
+            assertSame(c, GeometryCache.get("t|c"));
+            assertEquals(800, GeometryCache.getResidentBytes());
+
+            // grown past the budget with the others: the least recent goes
+            GeometryCache.charge(c, 300);
+            assertNull(GeometryCache.get("t|a"));
+            assertEquals(700, GeometryCache.getResidentBytes());
+
+            // larger than the whole budget: not kept
+            GeometryCache.charge(c, 400);
+            assertNull(GeometryCache.get("t|c"));
+            GeometryCache.put("t|d", new Object(), 1001);
+            assertNull(GeometryCache.get("t|d"));
+            assertEquals(0, GeometryCache.getResidentBytes());
+        }
+        finally {
+            GeometryCache.setBudget(budget);
+            GeometryCache.clear("t|");
+        }
+    }
+
+    @Test
+    public void tablesShareTheBudget() {
+        long budget = GeometryCache.getBudget();
+        try {
+            clearAll();
+            DataPlr dp = new DataPlr();
+            dp.NR = 20;
+            dp.NTHET = 90;
+            dp.DTHET = 1;
+            PolarIndexMap map = PolarIndexMap.get(dp, 100, 50);
+            assertEquals(4L * 100 * 50, GeometryCache.getResidentBytes());
+            map.blend();
+            assertEquals(16L * 100 * 50, GeometryCache.getResidentBytes());
+
+            DataInput in = new DataInput(1.5, 100, 10, 0.1, 1, 0, 0, 0, 20, 0, 1, 90);
+            ReciprocalGeometry g = ReciprocalGeometry.get(in, 50, 25, 100, 50);
+            assertEquals(32L * 100 * 50, GeometryCache.getResidentBytes());
+
+            // room for the regridder's matrix only: the others are evicted
+            PolarRegridder.get(in, 50, 25, 100, 50, 1);
+            long matrix = GeometryCache.getResidentBytes() - 32L * 100 * 50;
+            assertTrue(matrix > 0);
+            GeometryCache.setBudget(matrix);
+            assertEquals(1, GeometryCache.size());
+            assertNotNull(PolarRegridder.get(in, 50, 25, 100, 50, 1));
+            assertTrue(g != ReciprocalGeometry.get(in, 50, 25, 100, 50));
+        }
+        finally {
+            GeometryCache.setBudget(budget);
+            clearAll();
+        }
+    }
+
+    private static void clearAll() {
+        PolarIndexMap.clear();
+        PolarRegridder.clearCache();
+        ReciprocalGeometry.clearCache();
+    }
+}
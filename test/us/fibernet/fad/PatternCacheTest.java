@@ -0,0 +1,73 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Each load through ImageInput's lookup order, display arrays first and the
+ * pattern on their absence, counts as exactly one hit or one miss.
+ */
+public class PatternCacheTest {
+
+    @Test
+    public void loadCountedOnce() {
+        PatternCache.clear();
+        String key = "pattern|1|2";
+        long hits = PatternCache.getHits(), misses = PatternCache.getMisses();
+
+        // first load: nothing cached
+        assertNull(PatternCache.getDisplayArrays(key));
+        assertNull(PatternCache.get(key));
+        assertEquals(hits, PatternCache.getHits());
+        assertEquals(misses + 1, PatternCache.getMisses());
+
+        IntPatternImage image = new IntPatternImage(8, 8);
+        PatternCache.put(key, image);
+
+        // pattern cached, arrays not yet
+        assertNull(PatternCache.getDisplayArrays(key));
+        assertSame(image, PatternCache.get(key));
+        assertEquals(hits + 1, PatternCache.getHits());
+        assertEquals(misses + 1, PatternCache.getMisses());
+
+        PatternGUI.DisplayArrays arrays = new PatternGUI.DisplayArrays(image);
+        PatternCache.putDisplayArrays(key, arrays);
+
+        // arrays cached: the pattern is not looked up
+        assertSame(arrays, PatternCache.getDisplayArrays(key));
+        assertEquals(hits + 2, PatternCache.getHits());
+        assertEquals(misses + 1, PatternCache.getMisses());
+        PatternCache.clear();
+    }
+}
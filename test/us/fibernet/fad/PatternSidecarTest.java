@@ -0,0 +1,148 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Sidecar cache files, version 3: PLR data keeps float intensities and
+ * short bin counts exactly, images keep their pixel type, and a cache of
+ * another version or of a changed source is ignored.
+ */
+public class PatternSidecarTest {
+
+    @Test
+    public void plrRoundTrip() throws Exception {
+
+        String text = DataPlrParseTest.plr(false);
+        File src = source(text);
+        DataPlr dp = new DataPlr();
+        assertTrue(dp.parseData(new BufferedReader(new StringReader(text))));
+        dp.intensity[0] = 0.125f;                   // not a multiple of 0.1
+        dp.binCount[1] = Short.MAX_VALUE;           // largest count kept
+
+        PatternSidecar.storePlr(src, dp);
+        DataPlr cached = PatternSidecar.loadPlr(src);
+
+        assertNotNull(cached);
+        assertEquals(dp.NR, cached.NR);
+        assertEquals(dp.NTHET, cached.NTHET);
+        assertEquals(dp.RMIN, cached.RMIN, 0);
+        assertEquals(dp.DTHET, cached.DTHET, 0);
+        assertEquals(dp.SFD, cached.SFD, 0);
+        assertEquals(dp.REPEAT, cached.REPEAT, 0);
+        assertArrayEquals(dp.getIntensities(), cached.getIntensities(), 0);
+        assertArrayEquals(dp.getBinCounts(), cached.getBinCounts());
+    }
+
+    @Test
+    public void imageRoundTrip() throws Exception {
+
+        IntPatternImage ints = new IntPatternImage(5, 3);
+        UShortPatternImage shorts = new UShortPatternImage(5, 3);
+        for(int y=0; y<3; y++) {
+            for(int x=0; x<5; x++) {
+                ints.set(x, y, (x - 2) * 1000003 + y);
+                shorts.set(x, y, 65535 - x * 3 - y);
+            }
+        }
+
+        for(PatternImage image : new PatternImage[] { ints, shorts }) {
+            File src = source("image");
+            PatternSidecar.storeImage(src, image);
+            PatternImage cached = PatternSidecar.loadImage(src);
+            assertNotNull(cached);
+            assertEquals(image.getPixelType(), cached.getPixelType());
+            assertEquals(image.getWidth(), cached.getWidth());
+            assertEquals(image.getHeight(), cached.getHeight());
+            for(int y=0; y<3; y++) {
+                for(int x=0; x<5; x++) {
+                    assertEquals(image.get(x, y), cached.get(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void otherVersionIgnored() throws Exception {
+
+        File src = source("image");
+        PatternSidecar.storeImage(src, new IntPatternImage(2, 2));
+        assertNotNull(PatternSidecar.loadImage(src));
+
+        RandomAccessFile cache = new RandomAccessFile(src.getCanonicalPath() + ".fadc", "rw");
+        try {
+            cache.seek(4);
+            cache.write(new byte[] { 2, 0, 0, 0 });   // version, little endian
+        }
+        finally {
+            cache.close();
+        }
+        assertNull(PatternSidecar.loadImage(src));
+    }
+
+    @Test
+    public void changedSourceIgnored() throws Exception {
+
+        File src = source("image");
+        PatternSidecar.storeImage(src, new IntPatternImage(2, 2));
+        assertTrue(src.setLastModified(src.lastModified() - 60000));
+        assertNull(PatternSidecar.loadImage(src));
+    }
+
+    /*
+     * a source file holding text; it and its sidecar go when the VM exits
+     */
+    private static File source(String text) throws IOException {
+        File f = File.createTempFile("fad", ".plr");
+        f.deleteOnExit();
+        new File(f.getCanonicalPath() + ".fadc").deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(text.getBytes("US-ASCII"));
+        }
+        finally {
+            out.close();
+        }
+        return f;
+    }
+}
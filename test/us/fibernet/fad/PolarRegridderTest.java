@@ -0,0 +1,263 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * PolarRegridder on synthetic images whose polar form is known: a radially
+ * symmetric image regrids to rows constant in angle, at the value of the
+ * row's radius.
+ *
+ * A fiber pattern, mirror symmetric about a tilted meridian and the
+ * equator, folds to the same cells whichever quadrants are left out.
+ *
+ * Only cells some sub-pixel falls in are checked; at small radii a cell of
+ * one degree can be narrower than a sub-pixel, and is then 0.
+ */
+public class PolarRegridderTest {
+
+    private static final int W = 400, H = 300;
+    private static final double XC = 200.3, YC = 150.7;
+
+    @Test
+    public void radiallySymmetricImage() {
+
+        DataInput in = grid();
+        PolarRegridder r = PolarRegridder.get(in, XC, YC, W, H);
+        PatternImage image = PatternImage.create(W, H);
+        for(int y=0; y<H; y++) {
+            for(int x=0; x<W; x++) {
+                image.set(x, y, (int) Math.round(10 * Math.hypot(x - XC, y - YC)));
+            }
+        }
+
+        DataPlr dp = r.regrid(image);
+        float[] coverage = r.getCoverage();
+        assertEquals(in.NR(), dp.NR);
+        assertEquals((int) in.NTHET(), dp.NTHET);
+        for(int i=0; i<dp.NR; i++) {
+            double radius = in.RMIN() + i * in.WR();
+            double sum = 0, area = 0;
+            for(int j=0; j<dp.NTHET; j++) {
+                float c = coverage[i * dp.NTHET + j];
+                if(c > 0) {
+                    // a pixel holds the value at its center, up to half a diagonal away
+                    assertEquals("cell " + i + "," + j, 10 * radius, dp.getIntensity(i, j),
+                                 10 * Math.sqrt(0.5));
+                    sum += c * dp.getIntensity(i, j);
+                    area += c;
+                }
+            }
+            assertEquals("row " + i, 10 * radius, sum / area, 0.5);
+        }
+    }
+
+    @Test
+    public void coverageIsTheAnnulusArea() {
+
+        DataInput in = grid();
+        PolarRegridder r = PolarRegridder.get(in, XC, YC, W, H);
+        double inner = in.RMIN() - 0.5 * in.WR();
+        double outer = in.RMIN() + (in.NR() - 0.5) * in.WR();
+        double sum = 0;
+        for(float c : r.getCoverage()) {
+            sum += c;
+        }
+        double area = Math.PI * (outer * outer - inner * inner);
+        assertEquals(area, sum, 0.005 * area);
+    }
+
+    @Test
+    public void constantImageStaysConstant() {
+
+        PolarRegridder r = PolarRegridder.get(grid(), XC, YC, W, H);
+        PatternImage image = PatternImage.create(W, H, PatternReader.PixelType.USHORT);
+        image.fill(7);
+        float[] polar = new float[r.getNR() * r.getNTHET()];
+        r.apply(image, polar);
+        float[] coverage = r.getCoverage();
+        for(int c=0; c<polar.length; c++) {
+            assertEquals(coverage[c] > 0 ? 7 : 0, polar[c], 1e-4);
+        }
+    }
+
+    @Test
+    public void maskedHalfLeftOut() {
+
+        DataInput in = grid();
+        PolarRegridder r = PolarRegridder.get(in, XC, YC, W, H);
+        PatternImage image = PatternImage.create(W, H);
+        PatternImage mask = PatternImage.create(W, H);
+        for(int y=0; y<H; y++) {
+            for(int x=0; x<W; x++) {
+                image.set(x, y, (int) Math.round(10 * Math.hypot(x - XC, y - YC)));
+                if(x < XC) {
+                    mask.set(x, y, 1);      // negative angles
+                }
+            }
+        }
+
+        DataPlr all = r.regrid(image);
+        DataPlr half = r.regrid(image, mask);
+        for(int i=0; i<all.NR; i++) {
+            for(int j=0; j<all.NTHET; j++) {
+                double angle = all.getAngle(j);
+                if(angle < -10 && angle > -170) {
+                    assertEquals(0, half.getBinCount(i, j));
+                    assertEquals(0, half.getIntensity(i, j), 0);
+                }
+                else if(angle > 10 && angle < 170) {
+                    assertEquals(all.getBinCount(i, j), half.getBinCount(i, j));
+                    assertEquals(all.getIntensity(i, j), half.getIntensity(i, j), 1e-3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void offHeapImagesAndViewsRegridAlike() {
+
+        PolarRegridder r = PolarRegridder.get(grid(), XC, YC, W, H);
+        PatternImage big = PatternImage.create(W + 20, H + 10);
+        PatternImage mask = PatternImage.create(W, H);
+        for(int y=0; y<H + 10; y++) {
+            for(int x=0; x<W + 20; x++) {
+                big.set(x, y, (x * 7 + y * 13) % 1000 - 5);    // a few negative
+            }
+        }
+        for(int y=0; y<H; y++) {
+            mask.set(y % W, y, 1);
+        }
+        PatternImage heap = big.region(10, 5, W, H).copy();
+        DirectPatternImage direct = new DirectPatternImage(W + 20, H + 10,
+                                                           PatternReader.PixelType.INT);
+        direct.copyFrom(big, 0, 0);
+
+        float[] expect = new float[r.getNR() * r.getNTHET()];
+        float[] counts = new float[expect.length];
+        r.apply(heap, mask, expect, counts);
+        float[] plain = new float[expect.length];
+        r.apply(heap, plain);
+
+        PatternImage[] same = { big.region(10, 5, W, H), direct.region(10, 5, W, H) };
+        for(PatternImage image : same) {
+            float[] got = new float[expect.length];
+            float[] gotCounts = new float[expect.length];
+            r.apply(image, mask, got, gotCounts);
+            assertArrayEquals(expect, got, 0);
+            assertArrayEquals(counts, gotCounts, 0);
+            r.apply(image, got);
+            assertArrayEquals(plain, got, 0);
+        }
+        direct.close();
+    }
+
+    @Test
+    public void headerFollowsDataInput() {
+
+        DataInput in = grid();
+        PatternImage image = PatternImage.create(W, H);
+        PolarRegridder before = PolarRegridder.get(in, XC, YC, W, H);
+        in.XWAV(0.9);
+        in.SFD(300);
+        PolarRegridder after = PolarRegridder.get(in, XC, YC, W, H);
+
+        DataPlr dp = after.regrid(image);
+        assertEquals(0.9, dp.XW, 0);
+        assertEquals(300, dp.SFD, 0);
+        assertSame(before.getCoverage(), after.getCoverage());   // matrix shared
+    }
+
+    @Test
+    public void foldedFiberPattern() {
+
+        DataInput in = grid();
+        in.THMIN(0);
+        in.NTHET(91);
+        int w = 300, h = 300;
+        double xc = 150.2, yc = 149.6, tilt = 5;
+        double s = Math.sin(Math.toRadians(tilt)), c = Math.cos(Math.toRadians(tilt));
+
+        // 7 per pixel along the equator, 3 along the meridian, mirrored
+        PatternImage image = PatternImage.create(w, h);
+        PatternImage mask = PatternImage.create(w, h);
+        for(int y=0; y<h; y++) {
+            for(int x=0; x<w; x++) {
+                double e = (x - xc) * c - (y - yc) * s;
+                double m = (x - xc) * s + (y - yc) * c;
+                image.set(x, y, (int) Math.round(7 * Math.abs(e) + 3 * Math.abs(m)));
+                if(x < xc && y < yc) {
+                    mask.set(x, y, 1);          // one quadrant masked
+                }
+                if(x == 200) {
+                    image.set(x, y, -1);        // a dead column
+                }
+            }
+        }
+
+        PolarRegridder r = PolarRegridder.folding(in, xc, yc, tilt, w, h);
+        DataPlr all = r.regrid(image, null);
+        DataPlr part = r.regrid(image, mask);
+        double err = Math.hypot(7, 3) * Math.sqrt(0.5);
+        for(int i=0; i<all.NR; i++) {
+            double radius = in.RMIN() + i * in.WR();
+            for(int j=0; j<all.NTHET; j++) {
+                double theta = Math.toRadians(all.getAngle(j));
+                double expect = radius * (7 * Math.sin(theta) + 3 * Math.cos(theta));
+                if(all.getBinCount(i, j) > 0) {
+                    assertEquals("cell " + i + "," + j, expect, all.getIntensity(i, j), err);
+                }
+                if(part.getBinCount(i, j) > 0) {
+                    assertEquals("cell " + i + "," + j, expect, part.getIntensity(i, j), err);
+                }
+                assertTrue(part.getBinCount(i, j) <= all.getBinCount(i, j));
+            }
+        }
+    }
+
+    /*
+     * 100 radii from 10 pixels, 360 angles of 1 degree from -180
+     */
+    private static DataInput grid() {
+        DataInput in = new DataInput();
+        in.RMIN(10);
+        in.NR(100);
+        in.WR(1);
+        in.THMIN(-180);
+        in.DTHET(1);
+        in.NTHET(360);
+        return in;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * ReciprocalGeometry against the closed forms of a flat detector: with
+ * 2theta = atan(rho / SFD),
+ *
+ *   |s| = 2 sin(theta) / XWAV,  d = 1 / |s|,  Z = sin(2theta) * (y / rho) / XWAV,
+ *   R = +-sqrt(|s|^2 - Z^2),  ewald = 2 sin(theta) / tan(2theta)
+ *
+ * R is not 0 on the meridian, x = 0, as the sphere curves away from it.
+ */
+public class ReciprocalGeometryTest {
+
+    private static final double XWAV = 1.5418, SFD = 100, C = 28.6, DR = 0.1;
+    private static final int XC = 50, YC = 40;
+
+    @Test
+    public void matchesClosedForm() {
+        ReciprocalGeometry.clearCache();
+        ReciprocalGeometry g = ReciprocalGeometry.get(input(), XC, YC, 101, 81);
+
+        int[][] pixels = {
+            { XC, YC + 30 },        // meridian, above the center
+            { XC, YC - 25 },        // meridian, below
+            { XC + 45, YC },        // equator, right
+            { XC - 20, YC },        // equator, left
+            { XC - 37, YC + 29 },
+            { XC + 50, YC - 40 },   // a corner
+        };
+        for(int[] p : pixels) {
+            double x = (p[0] - XC) * DR, y = (p[1] - YC) * DR;
+            double rho = Math.hypot(x, y);
+            double twoTheta = Math.atan(rho / SFD);
+            double s = 2 * Math.sin(twoTheta / 2) / XWAV;
+            double Z = Math.sin(twoTheta) * (y / rho) / XWAV;
+            double R = Math.copySign(Math.sqrt(Math.max(0, s * s - Z * Z)), x);
+            double ewald = 2 * Math.sin(twoTheta / 2) / Math.tan(twoTheta);
+
+            String at = "(" + p[0] + ", " + p[1] + ")";
+            assertEquals(at + " Z", Z, g.Z(p[0], p[1]), 1e-6 * s);
+            assertEquals(at + " R", R, g.R(p[0], p[1]), 1e-6 * s);
+            assertEquals(at + " d", 1 / s, g.d(p[0], p[1]), 1e-6 / s);
+            assertEquals(at + " ewald", ewald, g.ewald(p[0], p[1]), 1e-6);
+            assertEquals(at + " layer line", Z * C, g.layerLine(p[0], p[1]), 1e-6 * s * C);
+        }
+
+        // the center: no scattering
+        assertEquals(0, g.R(XC, YC), 0);
+        assertEquals(0, g.Z(XC, YC), 0);
+        assertTrue(Float.isInfinite(g.d(XC, YC)));
+        assertEquals(1, g.ewald(XC, YC), 0);
+
+        assertTrue(g.R(XC, YC + 30) > 0);
+
+        // the flat-film radius underestimates |s|, more so further out
+        assertTrue(g.ewald(XC + 10, YC) < 1);
+        assertTrue(g.ewald(XC + 50, YC) < g.ewald(XC + 10, YC));
+    }
+
+    @Test
+    public void sharedPerGeometry() {
+        ReciprocalGeometry.clearCache();
+        ReciprocalGeometry g = ReciprocalGeometry.get(input(), XC, YC, 101, 81);
+        assertSame(g, ReciprocalGeometry.get(input(), XC, YC, 101, 81));
+        assertTrue(g != ReciprocalGeometry.get(input(), XC + 1, YC, 101, 81));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outsideImage() {
+        ReciprocalGeometry.get(input(), XC, YC, 101, 81).R(101, 0);
+    }
+
+    private static DataInput input() {
+        return new DataInput(XWAV, SFD, C, DR, 1, 0, 0, 0, 10, 0, 1, 90);
+    }
+}
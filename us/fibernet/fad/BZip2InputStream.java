@@ -0,0 +1,461 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decompresses a bzip2 stream, or several concatenated ones as written by
+ * parallel compressors. Blocks are decoded one at a time, and the output of
+ * a block is produced as it is read rather than kept whole, so memory use is
+ * bounded by the block size of at most 900 kB. Block and stream CRCs are
+ * checked; a mismatch or a malformed stream is an IOException.
+ */
+final class BZip2InputStream extends InputStream {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+
+    private static final int MAX_GROUPS = 6;
+    private static final int GROUP_SIZE = 50;
+    private static final int MAX_CODE_LEN = 20;
+    private static final int MAX_ALPHA = 258;
+    private static final int MAX_SELECTORS = 18002;
+    private static final int RUNA = 0, RUNB = 1;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for(int i=0; i<256; i++) {
+            int c = i << 24;
+            for(int k=0; k<8; k++) {
+                c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+            }
+            CRC_TABLE[i] = c;
+        }
+    }
+
+    private final InputStream in;
+    private long bits;              // bit buffer, the next bit highest of its bitCount
+    private int bitCount;
+
+    private int blockSize;          // of the current stream, bytes
+    private int[] tt;               // inverse BWT vector of the current block
+    private int streamCrc;
+    private boolean eof;
+
+    // output state of the current block
+    private int bwtLeft;            // symbols of the inverse BWT not yet taken
+    private int tPos;
+    private int last = -1;          // last byte output, and how many times in a row
+    private int runLength;
+    private int repeatLeft;         // repeats of last still to output
+    private int blockCrc;
+    private int expectedBlockCrc;
+    private boolean inBlock;
+
+    private final byte[] one = new byte[1];
+
+    BZip2InputStream(InputStream in) throws IOException {
+        this.in = in;
+        if(!readStreamHeader()) {
+            throw new IOException("not a bzip2 stream");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if(len == 0) {
+            return 0;
+        }
+
+        int n = 0;
+        while(n < len) {
+            if(repeatLeft > 0) {
+                int k = Math.min(repeatLeft, len - n);
+                for(int i=0; i<k; i++) {
+                    b[off + n++] = (byte) last;
+                    blockCrc = (blockCrc << 8) ^ CRC_TABLE[((blockCrc >>> 24) ^ last) & 0xff];
+                }
+                repeatLeft -= k;
+                continue;
+            }
+            if(bwtLeft == 0) {
+                if(inBlock) {
+                    endBlock();
+                }
+                if(n > 0) {
+                    break;   // return what is ready before reading the next block
+                }
+                if(eof || !nextBlock()) {
+                    return n > 0 ? n : -1;
+                }
+                continue;
+            }
+
+            tPos = tt[tPos];
+            int c = tPos & 0xff;
+            tPos >>>= 8;
+            --bwtLeft;
+
+            // run-length decoding: four equal bytes are followed by a repeat count
+            if(runLength == 4) {
+                repeatLeft = c;
+                runLength = 0;
+                continue;
+            }
+            if(c == last) {
+                ++runLength;
+            }
+            else {
+                last = c;
+                runLength = 1;
+            }
+            b[off + n++] = (byte) c;
+            blockCrc = (blockCrc << 8) ^ CRC_TABLE[((blockCrc >>> 24) ^ c) & 0xff];
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tt = null;
+        in.close();
+    }
+
+    /*
+     * "BZh" and the block size digit; false at end of input
+     */
+    private boolean readStreamHeader() throws IOException {
+        int b = in.read();
+        if(b < 0) {
+            return false;
+        }
+        if(b != 'B' || in.read() != 'Z' || in.read() != 'h') {
+            throw new IOException("bad bzip2 stream header");
+        }
+        int level = in.read() - '0';
+        if(level < 1 || level > 9) {
+            throw new IOException("bad bzip2 block size");
+        }
+        blockSize = level * 100000;
+        streamCrc = 0;
+        bits = 0;
+        bitCount = 0;
+        return true;
+    }
+
+    private void endBlock() throws IOException {
+        if(~blockCrc != expectedBlockCrc) {
+            throw new IOException("bzip2 block CRC error");
+        }
+        streamCrc = ((streamCrc << 1) | (streamCrc >>> 31)) ^ expectedBlockCrc;
+        inBlock = false;
+    }
+
+    /*
+     * decode the next block; false at the end of the last stream
+     */
+    private boolean nextBlock() throws IOException {
+
+        while(true) {
+            long magic = readBits(48);
+            if(magic == END_MAGIC) {
+                if((int) readBits(32) != streamCrc) {
+                    throw new IOException("bzip2 stream CRC error");
+                }
+                // a concatenated stream may follow, from the next byte
+                bitCount = 0;
+                if(!readStreamHeader()) {
+                    eof = true;
+                    tt = null;
+                    return false;
+                }
+                continue;
+            }
+            if(magic != BLOCK_MAGIC) {
+                throw new IOException("bad bzip2 block header");
+            }
+            expectedBlockCrc = (int) readBits(32);
+            decodeBlock();
+            blockCrc = -1;
+            last = -1;
+            runLength = 0;
+            repeatLeft = 0;
+            inBlock = true;
+            return true;
+        }
+    }
+
+    private void decodeBlock() throws IOException {
+
+        if(readBits(1) != 0) {
+            throw new IOException("randomised bzip2 blocks are not supported");
+        }
+        int origPtr = (int) readBits(24);
+
+        // symbols in use
+        int[] seqToUnseq = new int[256];
+        int nInUse = 0;
+        int used = (int) readBits(16);
+        for(int i=0; i<16; i++) {
+            if((used & (0x8000 >>> i)) != 0) {
+                int bitsUsed = (int) readBits(16);
+                for(int j=0; j<16; j++) {
+                    if((bitsUsed & (0x8000 >>> j)) != 0) {
+                        seqToUnseq[nInUse++] = i * 16 + j;
+                    }
+                }
+            }
+        }
+        if(nInUse == 0) {
+            throw new IOException("bzip2 block uses no symbols");
+        }
+        int alphaSize = nInUse + 2;
+
+        // Huffman tables and the table of each group of 50 symbols
+        int nGroups = (int) readBits(3);
+        int nSelectors = (int) readBits(15);
+        if(nGroups < 2 || nGroups > MAX_GROUPS || nSelectors < 1) {
+            throw new IOException("bad bzip2 Huffman table count");
+        }
+        byte[] mtfGroups = {0, 1, 2, 3, 4, 5};
+        byte[] selectors = new byte[Math.min(nSelectors, MAX_SELECTORS)];
+        for(int i=0; i<nSelectors; i++) {
+            int j = 0;
+            while(readBits(1) != 0) {
+                if(++j >= nGroups) {
+                    throw new IOException("bad bzip2 selector");
+                }
+            }
+            byte v = mtfGroups[j];
+            for(; j>0; j--) {
+                mtfGroups[j] = mtfGroups[j - 1];
+            }
+            mtfGroups[0] = v;
+            if(i < MAX_SELECTORS) {
+                selectors[i] = v;
+            }
+        }
+        nSelectors = selectors.length;
+
+        int[][] limit = new int[nGroups][MAX_CODE_LEN + 2];
+        int[][] base = new int[nGroups][MAX_CODE_LEN + 2];
+        int[][] perm = new int[nGroups][MAX_ALPHA];
+        int[] minLens = new int[nGroups];
+        int[] length = new int[alphaSize];
+        for(int t=0; t<nGroups; t++) {
+            int curr = (int) readBits(5);
+            for(int i=0; i<alphaSize; i++) {
+                while(true) {
+                    if(curr < 1 || curr > MAX_CODE_LEN) {
+                        throw new IOException("bad bzip2 code length");
+                    }
+                    if(readBits(1) == 0) {
+                        break;
+                    }
+                    curr += readBits(1) == 0 ? 1 : -1;
+                }
+                length[i] = curr;
+            }
+            minLens[t] = makeDecodeTables(length, alphaSize, limit[t], base[t], perm[t]);
+        }
+
+        // Huffman and move-to-front decoding, with runs of the front symbol
+        // coded as RUNA/RUNB digits
+        if(tt == null || tt.length < blockSize) {
+            tt = new int[blockSize];
+        }
+        int[] counts = new int[256];
+        int[] mtf = new int[256];
+        for(int i=0; i<256; i++) {
+            mtf[i] = i;
+        }
+
+        int eob = nInUse + 1;
+        int nblock = 0;
+        int group = -1, groupLeft = 0;
+        int run = 0, runWeight = 1;
+        int[] gLimit = null, gBase = null, gPerm = null;
+        int gMinLen = 0;
+
+        while(true) {
+            if(groupLeft == 0) {
+                if(++group >= nSelectors) {
+                    throw new IOException("bzip2 selectors exhausted");
+                }
+                int t = selectors[group];
+                gLimit = limit[t];
+                gBase = base[t];
+                gPerm = perm[t];
+                gMinLen = minLens[t];
+                groupLeft = GROUP_SIZE;
+            }
+            --groupLeft;
+
+            int n = gMinLen;
+            int code = (int) readBits(n);
+            while(code > gLimit[n]) {
+                if(++n > MAX_CODE_LEN) {
+                    throw new IOException("bad bzip2 Huffman code");
+                }
+                code = (code << 1) | (int) readBits(1);
+            }
+            int index = code - gBase[n];
+            if(index < 0 || index >= alphaSize) {
+                throw new IOException("bad bzip2 Huffman code");
+            }
+            int sym = gPerm[index];
+
+            if(sym == RUNA || sym == RUNB) {
+                run += sym == RUNA ? runWeight : 2 * runWeight;
+                runWeight <<= 1;
+                if(run > blockSize) {
+                    throw new IOException("bzip2 run exceeds block size");
+                }
+                continue;
+            }
+
+            if(run > 0) {
+                int c = seqToUnseq[mtf[0]];
+                if(nblock + run > blockSize) {
+                    throw new IOException("bzip2 block too long");
+                }
+                counts[c] += run;
+                while(run-- > 0) {
+                    tt[nblock++] = c;
+                }
+                run = 0;
+                runWeight = 1;
+            }
+
+            if(sym == eob) {
+                break;
+            }
+
+            // move symbol sym - 1 to the front
+            int k = sym - 1;
+            if(k >= nInUse) {
+                throw new IOException("bad bzip2 symbol");
+            }
+            int v = mtf[k];
+            System.arraycopy(mtf, 0, mtf, 1, k);
+            mtf[0] = v;
+            int c = seqToUnseq[v];
+            if(nblock >= blockSize) {
+                throw new IOException("bzip2 block too long");
+            }
+            counts[c]++;
+            tt[nblock++] = c;
+        }
+
+        if(origPtr >= nblock) {
+            throw new IOException("bad bzip2 block origin");
+        }
+
+        // inverse Burrows-Wheeler transform: link each position to the next
+        int[] cftab = new int[256];
+        for(int i=0, sum=0; i<256; i++) {
+            cftab[i] = sum;
+            sum += counts[i];
+        }
+        for(int i=0; i<nblock; i++) {
+            tt[cftab[tt[i] & 0xff]++] |= i << 8;
+        }
+        tPos = tt[origPtr] >>> 8;
+        bwtLeft = nblock;
+    }
+
+    /*
+     * canonical Huffman decoding tables from code lengths; returns the
+     * shortest code length
+     */
+    private static int makeDecodeTables(int[] length, int alphaSize, int[] limit, int[] base,
+                                        int[] perm) {
+        int minLen = 32, maxLen = 0;
+        for(int i=0; i<alphaSize; i++) {
+            minLen = Math.min(minLen, length[i]);
+            maxLen = Math.max(maxLen, length[i]);
+        }
+
+        int pp = 0;
+        for(int i=minLen; i<=maxLen; i++) {
+            for(int j=0; j<alphaSize; j++) {
+                if(length[j] == i) {
+                    perm[pp++] = j;
+                }
+            }
+        }
+
+        for(int i=0; i<base.length; i++) {
+            base[i] = 0;
+            limit[i] = -1;
+        }
+        for(int i=0; i<alphaSize; i++) {
+            base[length[i] + 1]++;
+        }
+        for(int i=1; i<base.length; i++) {
+            base[i] += base[i - 1];
+        }
+
+        int vec = 0;
+        for(int i=minLen; i<=maxLen; i++) {
+            vec += base[i + 1] - base[i];
+            limit[i] = vec - 1;
+            vec <<= 1;
+        }
+        for(int i=minLen+1; i<=maxLen; i++) {
+            base[i] = ((limit[i - 1] + 1) << 1) - base[i];
+        }
+        for(int i=maxLen+1; i<limit.length; i++) {
+            limit[i] = -1;   // no codes this long
+        }
+        return minLen;
+    }
+
+    private long readBits(int n) throws IOException {
+        while(bitCount < n) {
+            int b = in.read();
+            if(b < 0) {
+                throw new IOException("unexpected end of bzip2 stream");
+            }
+            bits = (bits << 8) | b;
+            bitCount += 8;
+        }
+        bitCount -= n;
+        return (bits >>> bitCount) & ((1L << n) - 1);
+    }
+}
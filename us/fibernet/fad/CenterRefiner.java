@@ -0,0 +1,361 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.util.Arrays;
+
+/**
+ * Refines the beam center and meridian tilt of a fiber pattern by its
+ * four-fold symmetry. A candidate (xc, yc, tilt) is scored by how much each
+ * pixel in a band of radii differs from its three mirror images about the
+ * meridian and the equator: the sum of squared deviations from the mean of
+ * the four, over the sum of their squares. Masked pixels, negative pixels and
+ * mirrors falling off the image are left out.
+ *
+ * The search climbs a 3 x 3 x 3 grid of candidates around the current best,
+ * scoring the candidates in parallel, and halves the steps when the best
+ * stays put. It starts on a block averaged image a few times smaller than the
+ * pattern and moves to finer images as the steps shrink. The tilt follows
+ * PolarRegridder: degrees from the image y axis towards x.
+ *
+ * refine(image, mask) warm starts from the solution of the previous frame,
+ * searching a small neighbourhood of it, so a series of patterns with a
+ * drifting beam is followed cheaply.
+ */
+public final class CenterRefiner {
+
+    /**
+     * A center and tilt with its symmetry residual
+     */
+    public static final class Solution {
+
+        public final double xc, yc, tilt;
+        public final double residual;
+
+        Solution(double xc, double yc, double tilt, double residual) {
+            this.xc = xc;
+            this.yc = yc;
+            this.tilt = tilt;
+            this.residual = residual;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("xc=%.2f, yc=%.2f, tilt=%.3f, residual=%.5g", xc, yc, tilt,
+                                 residual);
+        }
+    }
+
+    private static final int[] FACTORS = {8, 4, 2, 1};   // block sizes of the image pyramid
+    private static final int MIN_LEVEL_SIZE = 64;       // smallest side of a level searched
+    private static final int MIN_SAMPLES = 16;          // pixels needed to score a candidate
+    private static final int MAX_MOVES = 64;            // moves per level, bounding the climb
+    private static final double MIN_STEP = 0.125;       // final center step, pixels
+
+    private final double rmin, rmax;                    // band of radii scored, pixels
+
+    private double centerRange = -1;                    // cold start, -1: an 8th of the image
+    private double tiltRange = 5;
+    private double warmCenterRange = 4;
+    private double warmTiltRange = 1;
+
+    private Solution last;
+
+    /**
+     * @param rmin  inner radius of the band scored, pixels
+     * @param rmax  outer radius of the band scored, pixels
+     * @throws IllegalArgumentException  if the band is empty
+     */
+    public CenterRefiner(double rmin, double rmax) {
+        if(!(rmax > Math.max(0, rmin))) {
+            throw new IllegalArgumentException("empty band of radii " + rmin + " to " + rmax);
+        }
+        this.rmin = Math.max(0, rmin);
+        this.rmax = rmax;
+    }
+
+    /**
+     * @param center  distance from the initial center searched, pixels; a
+     *                negative value searches an 8th of the smaller image side
+     * @param tilt    tilt searched, degrees
+     */
+    public void setSearchRange(double center, double tilt) {
+        centerRange = center;
+        tiltRange = Math.max(0, tilt);
+    }
+
+    /**
+     * @param center  distance from the previous solution searched, pixels
+     * @param tilt    tilt from the previous solution searched, degrees
+     */
+    public void setWarmRange(double center, double tilt) {
+        warmCenterRange = Math.max(0, center);
+        warmTiltRange = Math.max(0, tilt);
+    }
+
+    /**
+     * @return  the solution of the last frame, or null
+     */
+    public Solution getLast() {
+        return last;
+    }
+
+    /**
+     * Forget the previous frame, so the next refine starts cold
+     */
+    public void reset() {
+        last = null;
+    }
+
+    /**
+     * Refine the center of image, starting from the previous frame's solution,
+     * or the image center with no tilt if there is none.
+     *
+     * @param mask  an image of the same size, nonzero where pixels are to be
+     *              left out, or null
+     */
+    public Solution refine(PatternImage image, PatternImage mask) {
+        if(last != null) {
+            return refine(image, mask, last.xc, last.yc, last.tilt, warmCenterRange, warmTiltRange);
+        }
+        return refine(image, mask, (image.getWidth() - 1) / 2.0, (image.getHeight() - 1) / 2.0, 0);
+    }
+
+    /**
+     * Refine the center of image from the guess (xc, yc, tilt) over the
+     * search range.
+     */
+    public Solution refine(PatternImage image, PatternImage mask, double xc, double yc,
+                           double tilt) {
+        double range = centerRange >= 0 ? centerRange
+                                        : Math.min(image.getWidth(), image.getHeight()) / 8.0;
+        return refine(image, mask, xc, yc, tilt, range, tiltRange);
+    }
+
+    private Solution refine(PatternImage image, PatternImage mask, double xc, double yc,
+                            double tilt, double range, double trange) {
+
+        if(mask != null && (mask.getWidth() != image.getWidth()
+                            || mask.getHeight() != image.getHeight())) {
+            throw new IllegalArgumentException("mask is " + mask.getWidth() + "x"
+                    + mask.getHeight() + ", image is " + image.getWidth() + "x" + image.getHeight());
+        }
+
+        double step = Math.max(MIN_STEP, range / 2);
+        double tstep = trange / 2;
+        double[] best = {xc, yc, tilt};
+        Level full = null;
+
+        for(int f : FACTORS) {
+            // a level is searched until the step falls below half its block,
+            // so it is entered only while the step is at least that
+            double minStep = f > 1 ? f / 2.0 : MIN_STEP;
+            if(f > 1 && (step < minStep || Math.min(image.getWidth(), image.getHeight()) / f
+                                           < MIN_LEVEL_SIZE)) {
+                continue;
+            }
+            Level level = new Level(image, mask, f);
+            if(f == 1) {
+                full = level;
+            }
+
+            double score = level.score(best[0], best[1], best[2]);
+            int moves = 0;
+            while(step >= minStep && moves < MAX_MOVES) {
+                double[] next = bestOf(level, best, step, tstep, score);
+                if(next == null) {
+                    step /= 2;
+                    tstep /= 2;
+                }
+                else {
+                    score = next[3];
+                    best = new double[] {next[0], next[1], next[2]};
+                    ++moves;
+                }
+            }
+        }
+
+        last = new Solution(best[0], best[1], best[2], full.score(best[0], best[1], best[2]));
+        return last;
+    }
+
+    // best of the candidates around center, scored in parallel, as
+    // {xc, yc, tilt, score}; null if none beats score
+    private static double[] bestOf(final Level level, double[] center, double step, double tstep,
+                                   double score) {
+
+        final double[][] cands = new double[27][];
+        int n = 0;
+        for(int i=-1; i<=1; i++) {
+            for(int j=-1; j<=1; j++) {
+                for(int k=-1; k<=1; k++) {
+                    if((i != 0 || j != 0 || k != 0) && (k == 0 || tstep > 0)) {
+                        cands[n++] = new double[] {center[0] + i * step, center[1] + j * step,
+                                                   center[2] + k * tstep, 0};
+                    }
+                }
+            }
+        }
+
+        ParallelUtil.forRange(0, n, 1, new ParallelUtil.RangeTask() {
+            public void run(int from, int to) {
+                for(int c=from; c<to; c++) {
+                    cands[c][3] = level.score(cands[c][0], cands[c][1], cands[c][2]);
+                }
+            }
+        });
+
+        double[] best = null;
+        for(int c=0; c<n; c++) {
+            if(cands[c][3] < score) {
+                score = cands[c][3];
+                best = cands[c];
+            }
+        }
+        return best;
+    }
+
+    /*
+     * The pattern block averaged by factor f, invalid pixels as NaN. Level
+     * pixel (u, v) covers pattern pixels [u * f, (u + 1) * f) x [v * f, (v + 1) * f).
+     */
+    private final class Level {
+
+        final int f, width, height;
+        final float[] pixels;
+
+        Level(final PatternImage image, final PatternImage mask, final int f) {
+
+            this.f = f;
+            this.width = image.getWidth() / f;
+            this.height = image.getHeight() / f;
+            this.pixels = new float[width * height];
+            final int W = width;
+
+            ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height), new ParallelUtil.RangeTask() {
+                public void run(int from, int to) {
+                    int[] row = new int[W * f];
+                    int[] mrow = new int[W * f];
+                    double[] sum = new double[W];
+                    int[] count = new int[W];
+                    for(int v=from; v<to; v++) {
+                        Arrays.fill(sum, 0);
+                        Arrays.fill(count, 0);
+                        for(int y=v*f; y<(v+1)*f; y++) {
+                            image.getPixels(0, y, W * f, 1, row);
+                            if(mask != null) {
+                                mask.getPixels(0, y, W * f, 1, mrow);
+                            }
+                            for(int x=0; x<W*f; x++) {
+                                if(row[x] >= 0 && (mask == null || mrow[x] == 0)) {
+                                    sum[x / f] += row[x];
+                                    ++count[x / f];
+                                }
+                            }
+                        }
+                        for(int u=0; u<W; u++) {
+                            pixels[v * W + u] = count[u] > 0 ? (float) (sum[u] / count[u])
+                                                             : Float.NaN;
+                        }
+                    }
+                }
+            });
+        }
+
+        /*
+         * symmetry residual of the pattern center (xc, yc) and tilt, in
+         * pattern pixels and degrees; infinite if too few pixels are scored
+         */
+        double score(double xc, double yc, double tilt) {
+
+            // the center and band on this level
+            double cx = (xc + 0.5) / f - 0.5;
+            double cy = (yc + 0.5) / f - 0.5;
+            double r0 = rmin / f, r1 = rmax / f;
+            double sin = Math.sin(Math.toRadians(tilt));
+            double cos = Math.cos(Math.toRadians(tilt));
+
+            double dev = 0, sq = 0;
+            int n = 0;
+            int ylo = Math.max(0, (int) Math.floor(cy - r1));
+            int yhi = Math.min(height - 1, (int) Math.ceil(cy + r1));
+            int xlo = Math.max(0, (int) Math.floor(cx - r1));
+            int xhi = Math.min(width - 1, (int) Math.ceil(cx + r1));
+
+            for(int v=ylo; v<=yhi; v++) {
+                for(int u=xlo; u<=xhi; u++) {
+                    double dx = u - cx, dy = v - cy;
+                    double r2 = dx * dx + dy * dy;
+                    if(r2 < r0 * r0 || r2 > r1 * r1) {
+                        continue;
+                    }
+                    // across and along the meridian; score each quartet once
+                    double e = dx * cos - dy * sin;
+                    double m = dx * sin + dy * cos;
+                    if(e < 0 || m < 0) {
+                        continue;
+                    }
+                    double p0 = pixels[v * width + u];
+                    double p1 = sample(cx - e * cos + m * sin, cy + e * sin + m * cos);
+                    double p2 = sample(cx + e * cos - m * sin, cy - e * sin - m * cos);
+                    double p3 = sample(cx - e * cos - m * sin, cy + e * sin - m * cos);
+                    if(Double.isNaN(p0 + p1 + p2 + p3)) {
+                        continue;
+                    }
+                    double mean = (p0 + p1 + p2 + p3) / 4;
+                    dev += (p0 - mean) * (p0 - mean) + (p1 - mean) * (p1 - mean)
+                         + (p2 - mean) * (p2 - mean) + (p3 - mean) * (p3 - mean);
+                    sq += p0 * p0 + p1 * p1 + p2 * p2 + p3 * p3;
+                    ++n;
+                }
+            }
+
+            if(n < MIN_SAMPLES) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return sq > 0 ? dev / sq : 0;
+        }
+
+        // bilinear sample at level coordinates (x, y), NaN off the level
+        private double sample(double x, double y) {
+            if(x < 0 || y < 0 || x > width - 1 || y > height - 1) {
+                return Double.NaN;
+            }
+            int x0 = Math.min((int) x, width - 2 < 0 ? 0 : width - 2);
+            int y0 = Math.min((int) y, height - 2 < 0 ? 0 : height - 2);
+            double fx = x - x0, fy = y - y0;
+            int i = y0 * width + x0;
+            int dx = width > 1 ? 1 : 0;
+            int dy = height > 1 ? width : 0;
+            double top = pixels[i] + fx * (pixels[i + dx] - pixels[i]);
+            double bottom = pixels[i + dy] + fx * (pixels[i + dy + dx] - pixels[i + dy]);
+            return top + fy * (bottom - top);
+        }
+    }
+}
@@ -69,8 +69,8 @@ public class ColormapControlGUI {
     private BufferedImage rainbow;
     private BufferedImage rainbowCache;
     private final PatternGUI patternGUI;
-    private int[][] imageArray; // input converted to color indexes
-    private int[][] rawImageArray;
+    private PatternImage imageArray; // input converted to color indexes
+    private PatternImage rawImageArray;
     private int minOriginalColor;
     private int maxOriginalColor;
     private BufferedImage histogram;
@@ -109,7 +109,7 @@ public class ColormapControlGUI {
     /**
      * Create the application.
      */
-    public ColormapControlGUI(int[][] imageArray, int[][] originalArray,
+    public ColormapControlGUI(PatternImage imageArray, PatternImage originalArray,
             PatternGUI p) {
         this.imageArray = imageArray;
         this.rawImageArray = originalArray;
@@ -417,23 +417,25 @@ public class ColormapControlGUI {
         int max = -1; // height
         int minThre = Integer.MAX_VALUE;
         int maxThre = Integer.MIN_VALUE;
-        for (int i = 0; i < imageArray.length; i++)
-            for (int j = 0; j < imageArray[0].length; j++) {
-                if (this.rawImageArray[i][j] < minThre
-                        && this.rawImageArray[i][j] > 0)
-                    minThre = this.rawImageArray[i][j];
-                if (rawImageArray[i][j] > maxThre)
-                    maxThre = this.rawImageArray[i][j];
-
-                if (colors.containsKey(imageArray[i][j])) {
-                    colors.put(imageArray[i][j],
-                            colors.get(imageArray[i][j]) + 1);
-                    if (colors.get(imageArray[i][j]) > max
-                            && imageArray[i][j] != 0)
-                        max = colors.get(imageArray[i][j]);
+        int[] raw = new int[imageArray.getWidth()];
+        int[] indexes = new int[imageArray.getWidth()];
+        for (int i = 0; i < imageArray.getHeight(); i++) {
+            this.rawImageArray.getRow(i, raw);
+            this.imageArray.getRow(i, indexes);
+            for (int j = 0; j < raw.length; j++) {
+                if (raw[j] < minThre && raw[j] > 0)
+                    minThre = raw[j];
+                if (raw[j] > maxThre)
+                    maxThre = raw[j];
+
+                if (colors.containsKey(indexes[j])) {
+                    colors.put(indexes[j], colors.get(indexes[j]) + 1);
+                    if (colors.get(indexes[j]) > max && indexes[j] != 0)
+                        max = colors.get(indexes[j]);
                 } else
-                    colors.put(imageArray[i][j], 1);
+                    colors.put(indexes[j], 1);
             }
+        }
         this.minOriginalColor = minThre;
         this.maxOriginalColor = maxThre;
         this.histoFactor = (double) (maxOriginalColor - minOriginalColor) / 374.0;
@@ -673,23 +675,28 @@ public class ColormapControlGUI {
     // generate
     // new image array and make pattern GUI to update image based on this image.
     void generatePatternImage() {
-        int[][] imageArray = this.rawImageArray;
-        int[][] output = new int[imageArray.length][imageArray[0].length];
+        PatternImage imageArray = this.rawImageArray;
+        PatternImage output = new UShortPatternImage(imageArray.getWidth(),
+                imageArray.getHeight());
+        int[] in = new int[imageArray.getWidth()];
+        int[] out = new int[imageArray.getWidth()];
         int min = Integer.valueOf(this.minArea.getText());
         int max = Integer.valueOf(this.maxArea.getText());
         double factor = (double) (max - min) / 374.0;
         // System.out.println("min: "+min+" max: "+max);
-        for (int w = 0; w < imageArray.length; w++) {
-            for (int h = 0; h < imageArray[0].length; h++) {
-                if (imageArray[w][h] <= min) {
-                    output[w][h] = 0; // first color
-                } else if (imageArray[w][h] >= max) {
-                    output[w][h] = 255; // last color
+        for (int w = 0; w < imageArray.getHeight(); w++) {
+            imageArray.getRow(w, in);
+            for (int h = 0; h < in.length; h++) {
+                if (in[h] <= min) {
+                    out[h] = 0; // first color
+                } else if (in[h] >= max) {
+                    out[h] = 255; // last color
                 } else {
-                    output[w][h] = (int) ((this.rainbowLabel.getHeight() - (int) curveFunction((imageArray[w][h] - min)
+                    out[h] = (int) ((this.rainbowLabel.getHeight() - (int) curveFunction((in[h] - min)
                             / factor)) * this.rainbowHeightFactor);
                 }
             }
+            output.setRow(w, out);
         }
         this.patternGUI.generateImage(output); // generate new image based on
                                                 // the color control
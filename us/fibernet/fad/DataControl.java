@@ -46,6 +46,9 @@ public final class DataControl {
     private DataControl() {
     }
 
+    // RUN tab commands work on the PLR pattern opened last, set by ImageInput
+    static final DataRun run = new DataRun();
+
     // RUN tab
     static DatumDef[] dataRun = {
         //
@@ -30,6 +30,8 @@ package us.fibernet.fad;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * PLR data headerFormat:
@@ -53,7 +55,11 @@ public class DataPlr {
     int[] IQ = {0, 0, 0, 0};
     double RMIN, WR, DR, XW, THMIN, DTHET, AME, BME, SFD, SFD2, REPEAT;
 
-    int[][] dataPlr;  // to hold intensity data in polar headerFormat
+    // polar data in columns, radius row i at [i * NTHET, (i + 1) * NTHET)
+    float[] intensity;   // x-ray intensity
+    short[] binCount;    // number of pixels binned into the cell
+
+    private PolarIndexMap map;   // index map of the last conversion
 
     static String lastPar = "REPEAT";    // last parameter name on the title line
     static String headerTerm = "99999";  // terminator string of header section
@@ -63,18 +69,127 @@ public class DataPlr {
     public DataPlr() {
     }
 
+    /**
+     * @return  true once intensities and bin counts have been parsed
+     */
+    public boolean hasData() {
+        return intensity != null;
+    }
+
+    /**
+     * @return  angle in degrees of column j, the same for every radius
+     */
+    public double getAngle(int j) {
+        return THMIN + j * DTHET;
+    }
+
+    /**
+     * @return  the NTHET angles in degrees
+     */
+    public float[] getAngles() {
+        float[] angles = new float[NTHET];
+        for(int j=0; j<NTHET; j++) {
+            angles[j] = (float) getAngle(j);
+        }
+        return angles;
+    }
+
+    /**
+     * @return  intensity at radius row i, angle column j
+     */
+    public float getIntensity(int i, int j) {
+        return intensity[i * NTHET + j];
+    }
+
+    /**
+     * @return  number of pixels binned at radius row i, angle column j
+     */
+    public int getBinCount(int i, int j) {
+        return binCount[i * NTHET + j];
+    }
+
+    /**
+     * Copy the NTHET intensities of radius row i into dest, allocating dest if null
+     *
+     * @return  dest
+     */
+    public float[] getIntensities(int i, float[] dest) {
+        if(dest == null) {
+            dest = new float[NTHET];
+        }
+        System.arraycopy(intensity, i * NTHET, dest, 0, NTHET);
+        return dest;
+    }
+
+    /**
+     * Copy the NTHET bin counts of radius row i into dest, allocating dest if null
+     *
+     * @return  dest
+     */
+    public short[] getBinCounts(int i, short[] dest) {
+        if(dest == null) {
+            dest = new short[NTHET];
+        }
+        System.arraycopy(binCount, i * NTHET, dest, 0, NTHET);
+        return dest;
+    }
+
+    /**
+     * @return  all intensities, radius row after row; shared, must not be modified
+     */
+    public float[] getIntensities() {
+        return intensity;
+    }
+
+    /**
+     * @return  all bin counts, radius row after row; shared, must not be modified
+     */
+    public short[] getBinCounts() {
+        return binCount;
+    }
+
     /**
      * @return  2D image data in Cartesian headerFormat
      */
-    public int[][] getImageData() {
+    public PatternImage getImageData() {
 
-        if(dataPlr == null) {
+        if(intensity == null) {
             return null;
         }
 
         int width, height;
         width = height = NR + roundit(RMIN);
-        return plrToCartesian(width, height);
+        IntPatternImage image = new IntPatternImage(width, height);
+        plrToCartesian(image, true, false);
+        return image;
+    }
+
+    /**
+     * Convert to a Cartesian image as getImageData does, into dest when it
+     * is an image of the right size. The index map of the last conversion is
+     * kept while the geometry is unchanged, so repeated sequential
+     * conversions allocate nothing; a parallel one allocates its row tasks.
+     *
+     * @param dest      reused when its size is that of the Cartesian image;
+     *                  may be null
+     * @param parallel  split the output rows across the common fork/join pool
+     * @param bilinear  blend the four neighbouring radius and angle cells
+     *                  rather than take the nearest
+     * @return  dest, or a new image if dest could not be used; null if there
+     *          is no data
+     */
+    public IntPatternImage getImageData(IntPatternImage dest, boolean parallel, boolean bilinear) {
+
+        if(intensity == null) {
+            return null;
+        }
+
+        int size = NR + roundit(RMIN);
+        if(dest == null || dest.getWidth() != size || dest.getHeight() != size) {
+            dest = new IntPatternImage(size, size);
+        }
+        plrToCartesian(dest, parallel, bilinear);
+        return dest;
     }
 
     /**
@@ -98,23 +213,24 @@ public class DataPlr {
 
             // read data for each R, each contain NTHET pieces of data
             // TODO: set NR to (NR + RMIN) ?
-            dataPlr = new int[NR][NTHET];
+            intensity = new float[NR * NTHET];
+            binCount = new short[NR * NTHET];
             //System.out.println("NR=" + NR + ", NT=" + NTHET);
 
-            // TODO:
-            // read only intensity at this time
             // "%6.1f%12.1f    %1d    0.000" (angle, x-ray-intensity, binCount)
+            // the angle is THMIN + j * DTHET, so it is not kept
             try {
-                for(int i=0; i<NR; i++) {
-                    for(int j=0; j<NTHET; j++) {
-                        line = br.readLine().trim();
-                        dataPlr[i][j] = roundit(Double.parseDouble(line.substring(6,18)));
-                    }
+                for(int k=0; k<NR*NTHET; k++) {
+                    line = br.readLine().trim();
+                    intensity[k] = (float) Double.parseDouble(line.substring(6,18));
+                    String[] fields = line.substring(18).trim().split("\\s+");
+                    binCount[k] = fields[0].length() > 0 ? binCount(Long.parseLong(fields[0])) : 0;
                 }
             }
             catch (Exception e) {
                 e.printStackTrace();
-                dataPlr = null;
+                intensity = null;
+                binCount = null;
                 return false;
             }
         }
@@ -122,6 +238,169 @@ public class DataPlr {
         return true;
     }
 
+    /**
+     * Parse PLR data held in a byte buffer, e.g., a memory mapped PLR file.
+     * Same as parseData(BufferedReader) except that data records are scanned
+     * in place: no String is created per record.
+     *
+     * @return  false if header or data could not be parsed
+     */
+    public boolean parseData(ByteBuffer buf) {
+
+        int pos = scanHeader(buf);
+        if(pos < 0) {
+            return false;
+        }
+
+        intensity = new float[NR * NTHET];
+        binCount = new short[NR * NTHET];
+
+        // "%6.1f%12.1f    %1d    0.000" (angle, x-ray-intensity, binCount)
+        PlrScanner scanner = new PlrScanner(buf, pos, buf.limit());
+        try {
+            for(int k=0; k<NR*NTHET; k++) {
+                scanner.skipField();
+                intensity[k] = (float) scanner.nextDouble();
+                binCount[k] = scanner.hasField() ? binCount(scanner.nextInt()) : 0;
+                scanner.nextLine();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            intensity = null;
+            binCount = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse PLR data held in a byte buffer with radius rows spread across the
+     * common fork/join pool. Data records are fixed width, so the offset of
+     * row i is computed from the length of the first record; every record is
+     * checked to end where expected. If they do not, the sequential
+     * parseData(ByteBuffer) is used instead. Results are identical.
+     *
+     * @return  false if header or data could not be parsed
+     */
+    public boolean parseDataParallel(final ByteBuffer buf) {
+
+        final int pos = scanHeader(buf);
+        if(pos < 0) {
+            return false;
+        }
+
+        int eol = pos;
+        while(eol < buf.limit() && buf.get(eol) != '\n') {
+            ++eol;
+        }
+        final int recLen = eol - pos + 1;
+        final int rowLen = recLen * NTHET;
+        if(eol >= buf.limit() || pos + (long) rowLen * NR - 1 > buf.limit()) {
+            return parseData(buf);
+        }
+
+        final float[] inten = new float[NR * NTHET];
+        final short[] bins = new short[NR * NTHET];
+        final AtomicBoolean fixedWidth = new AtomicBoolean(true);
+
+        try {
+            ParallelUtil.forRange(0, NR, ParallelUtil.grainFor(NR), new ParallelUtil.RangeTask() {
+                public void run(int from, int to) {
+                    PlrScanner scanner = new PlrScanner(buf, pos, buf.limit());
+                    for(int i=from; i<to && fixedWidth.get(); i++) {
+                        if(!parseRow(buf, scanner, pos + i * rowLen, recLen,
+                                     inten, bins, i * NTHET)) {
+                            fixedWidth.set(false);
+                        }
+                    }
+                }
+            });
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            intensity = null;
+            binCount = null;
+            return false;
+        }
+
+        if(!fixedWidth.get()) {
+            return parseData(buf);
+        }
+
+        intensity = inten;
+        binCount = bins;
+        return true;
+    }
+
+    /*
+     * A bin count saturated to the short range, as PolarRegridder stores
+     * counts: a count above 32767 must not wrap to a negative one
+     */
+    static short binCount(long n) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, n));
+    }
+
+    /*
+     * Parse the NTHET fixed width records of one radius starting at offset
+     * start into inten[off, off + NTHET) and bins[off, off + NTHET). Return
+     * false if a record does not end at a line end.
+     */
+    boolean parseRow(ByteBuffer buf, PlrScanner scanner, int start, int recLen,
+                     float[] inten, short[] bins, int off) {
+
+        int limit = buf.limit();
+        for(int j=0; j<NTHET; j++) {
+            int rec = start + j * recLen;
+            int last = rec + recLen - 1;
+            if(last < limit && buf.get(last) != '\n') {
+                return false;
+            }
+            scanner.position(rec);
+            scanner.skipField();
+            inten[off + j] = (float) scanner.nextDouble();
+            bins[off + j] = scanner.hasField() ? binCount(scanner.nextInt()) : 0;
+            if(scanner.position() > last) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Read header lines from buf up to the headerTerm line and parse them.
+     *
+     * @return  offset of the first data record in buf, or -1 on failure
+     */
+    int scanHeader(ByteBuffer buf) {
+
+        StringBuilder header = new StringBuilder();
+        int pos = buf.position();
+        int end = buf.limit();
+
+        while(pos < end) {
+            int eol = pos;
+            while(eol < end && buf.get(eol) != '\n') {
+                ++eol;
+            }
+            int next = eol + 1;
+            if(eol > pos && buf.get(eol - 1) == '\r') {
+                --eol;
+            }
+
+            String line = PlrScanner.toString(buf, pos, eol);
+            pos = next;
+            if(line.equals(headerTerm)) {
+                return parseHeader(header.toString()) ? pos : -1;
+            }
+            header.append(line);
+        }
+
+        return -1;
+    }
+
     /**
      *  TODO: put par names and values in a hashtable?
      *
@@ -149,6 +428,14 @@ public class DataPlr {
         }
         */
 
+        return setHeader(par);
+    }
+
+    /**
+     * Set header parameters from values in the order of headerFormat
+     */
+    boolean setHeader(double[] par) {
+
         try {
             int i = 0;
             IFV    = roundit(par[i++]);
@@ -182,6 +469,16 @@ public class DataPlr {
         return true;
     }
 
+    /**
+     * @return  header parameters in the order of headerFormat
+     */
+    double[] getHeader() {
+        return new double[] {
+            IFV, NULB, RMIN, NR, WR, DR, XW, THMIN, DTHET, NTHET, AME, BME, SFD,
+            IFOG, NGEOM, IOPT, IQ[0], IQ[1], IQ[2], IQ[3], SFD, REPEAT
+        };
+    }
+
     /**
      *
      * @param numstr  input string containing numbers
@@ -247,24 +544,70 @@ public class DataPlr {
 
     }
 
-    // convert data from polar to Cartesian
-    private int[][] plrToCartesian(int width, int height)
+    // convert data from polar to Cartesian, gathering through the index map
+    // of this geometry. every pixel of dest is written, 0 outside the grid
+    private void plrToCartesian(IntPatternImage dest, boolean parallel, boolean bilinear)
     {
-        int[][] dataCarte = new int[height][width];
-        int rmax = dataPlr.length;
-        int amax = dataPlr[0].length;
-
-        for(int h=0; h<height; h++) {
-            for(int w=0; w<width; w++) {
-                int r = roundit(Math.sqrt(h*h + w*w));
-                int a = roundit(Math.atan2(w, h) * 180 / Math.PI);
-                if(r < rmax && a < amax) {
-                    dataCarte[h][w] = dataPlr[r][a];
+        final int width = dest.getWidth();
+        final int height = dest.getHeight();
+        final int[] carte = dest.getData();
+        final int offset = dest.getOffset();
+        final int stride = dest.getStride();
+        if(map == null || !map.fits(this, width, height)) {
+            map = PolarIndexMap.get(this, width, height);
+        }
+        final PolarIndexMap m = map;
+        final PolarIndexMap.Blend blend = bilinear ? m.blend() : null;
+
+        if(parallel) {
+            ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height), new ParallelUtil.RangeTask() {
+                public void run(int from, int to) {
+                    gatherRows(m, blend, carte, offset, stride, from, to);
                 }
+            });
+        }
+        else {
+            gatherRows(m, blend, carte, offset, stride, 0, height);
+        }
+    }
+
+    private void gatherRows(PolarIndexMap m, PolarIndexMap.Blend blend, int[] carte,
+                            int offset, int stride, int from, int to) {
+        int width = m.width;
+        for(int h=from; h<to; h++) {
+            if(blend == null) {
+                gatherNearest(m.cell, h * width, carte, offset + h * stride, width);
+            }
+            else {
+                gatherBilinear(m.cell, blend, h * width, carte, offset + h * stride, width);
             }
         }
+    }
 
-        return dataCarte;
+    private void gatherNearest(int[] cell, int from, int[] carte, int to, int n) {
+        for(int k=0; k<n; k++) {
+            int c = cell[from + k];
+            carte[to + k] = c >= 0 ? roundit(intensity[c]) : 0;
+        }
+    }
+
+    private void gatherBilinear(int[] cell, PolarIndexMap.Blend blend, int from, int[] carte,
+                                int to, int n) {
+        for(int k=0; k<n; k++) {
+            int i = from + k;
+            if(cell[i] < 0) {
+                carte[to + k] = 0;
+                continue;
+            }
+            int c = blend.base[i];
+            float fr = blend.fr[i];
+            float fa = blend.fa[i];
+            int dr = fr > 0 ? NTHET : 0;
+            int da = fa > 0 ? 1 : 0;
+            double near = intensity[c] + fa * (intensity[c + da] - intensity[c]);
+            double far = intensity[c + dr] + fa * (intensity[c + dr + da] - intensity[c + dr]);
+            carte[to + k] = roundit(near + fr * (far - near));
+        }
     }
 
     private int roundit(double d) {
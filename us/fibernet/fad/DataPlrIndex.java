@@ -0,0 +1,218 @@
+/*
+ * Copyright Billy Zheng. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A lazy, indexed view of a PLR file. Only the header is parsed on open; the
+ * NTHET records of a radius are decoded from the memory mapped file when the
+ * radius is asked for, and the most recently used radii are kept in an LRU.
+ *
+ * Radius rows are located from the header end offset and the fixed record
+ * length. If the records turn out not to be fixed width, the start of every
+ * row is found with one scan for line ends.
+ */
+public class DataPlrIndex {
+
+    /**
+     * The NTHET records of one radius, in columns
+     */
+    public static final class Row {
+        public final float[] intensity;
+        public final short[] binCount;
+
+        Row(int nthet) {
+            intensity = new float[nthet];
+            binCount = new short[nthet];
+        }
+    }
+
+    private static final int DEFAULT_CACHE_ROWS = 16;
+
+    private final DataPlr header;     // header parameters, no data
+    private final ByteBuffer buf;
+    private final int dataOffset;     // offset of the first data record
+    private final int recLen;         // length of the first record, line end included
+    private int[] rowOffsets;         // row start offsets if records are not fixed width
+    private final Map<Integer, Row> rows;
+
+    private DataPlrIndex(DataPlr header, ByteBuffer buf, int dataOffset, final int cacheRows) {
+        this.header = header;
+        this.buf = buf;
+        this.dataOffset = dataOffset;
+
+        int eol = dataOffset;
+        while(eol < buf.limit() && buf.get(eol) != '\n') {
+            ++eol;
+        }
+        this.recLen = eol - dataOffset + 1;
+
+        this.rows = new LinkedHashMap<Integer, Row>(cacheRows * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Row> eldest) {
+                return size() > cacheRows;
+            }
+        };
+    }
+
+    /**
+     * Map a PLR file and parse its header only
+     *
+     * @throws IOException  if the file cannot be read or its header parsed
+     */
+    public static DataPlrIndex open(String fname) throws IOException {
+        return open(fname, DEFAULT_CACHE_ROWS);
+    }
+
+    /**
+     * @param cacheRows  number of decoded radii to keep
+     */
+    public static DataPlrIndex open(String fname, int cacheRows) throws IOException {
+
+        FileInputStream input = new FileInputStream(fname);
+        try {
+            FileChannel fc = input.getChannel();
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            DataPlr header = new DataPlr();
+            int offset = header.scanHeader(buf);
+            if(offset < 0) {
+                throw new IOException(fname + ": invalid PLR header");
+            }
+            return new DataPlrIndex(header, buf, offset, Math.max(1, cacheRows));
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    public int NR()         { return header.NR;    }
+    public int NTHET()      { return header.NTHET; }
+    public double RMIN()    { return header.RMIN;  }
+    public double THMIN()   { return header.THMIN; }
+    public double DTHET()   { return header.DTHET; }
+
+    /**
+     * @return  offset of the first data record, i.e., the end of the header
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return  angle in degrees of column j
+     */
+    public double getAngle(int j) {
+        return header.getAngle(j);
+    }
+
+    /**
+     * Get the intensities and bin counts of radius row i. The returned row is
+     * shared with the cache and must not be modified.
+     *
+     * @param i  row index in [0, NR)
+     * @return  NTHET records, or null if i is out of range or the row could
+     *          not be parsed
+     */
+    public synchronized Row getRow(int i) {
+
+        if(i < 0 || i >= header.NR) {
+            return null;
+        }
+
+        Row row = rows.get(i);
+        if(row != null) {
+            return row;
+        }
+
+        row = new Row(header.NTHET);
+        PlrScanner scanner = new PlrScanner(buf, dataOffset, buf.limit());
+        try {
+            if(rowOffsets == null) {
+                int start = dataOffset + i * recLen * header.NTHET;
+                if(start + recLen * header.NTHET - 1 > buf.limit()
+                        || !header.parseRow(buf, scanner, start, recLen,
+                                            row.intensity, row.binCount, 0)) {
+                    indexRows();
+                }
+            }
+            if(rowOffsets != null) {
+                parseRow(scanner, rowOffsets[i], row);
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        rows.put(i, row);
+        return row;
+    }
+
+    /*
+     * Find the start of every row by counting line ends
+     */
+    private void indexRows() throws IOException {
+
+        int[] offsets = new int[header.NR];
+        int pos = dataOffset, end = buf.limit();
+        for(int i=0; i<header.NR; i++) {
+            if(pos >= end) {
+                throw new IOException("PLR data ends before radius " + (i + 1));
+            }
+            offsets[i] = pos;
+            for(int j=0; j<header.NTHET && pos < end; j++) {
+                while(pos < end && buf.get(pos++) != '\n') {
+                    ;
+                }
+            }
+        }
+        rowOffsets = offsets;
+    }
+
+    /*
+     * Parse the NTHET variable width records starting at offset start
+     */
+    private void parseRow(PlrScanner scanner, int start, Row row) {
+        scanner.position(start);
+        for(int j=0; j<header.NTHET; j++) {
+            scanner.skipField();
+            row.intensity[j] = (float) scanner.nextDouble();
+            row.binCount[j] = scanner.hasField() ? DataPlr.binCount(scanner.nextInt()) : 0;
+            scanner.nextLine();
+        }
+    }
+}
@@ -36,6 +36,9 @@ public class DataRun {
 	private int VcurR;		// current radius to process
 	private double Vcut;		// data Vcut off at this degree
 
+	private DataPlrIndex plr;	// pattern being processed, read a radius at a time
+	private DataPlrIndex.Row currR;	// intensities and bin counts at radius VcurR
+
 	public DataRun() {
 		VcurR = 1;
 		Vcut  = 1.5;
@@ -54,6 +57,10 @@ public class DataRun {
 	public void VcurR(int vcurr)    { VcurR = vcurr;  }
 	public void Vcut(double vcut)   { Vcut  = vcut;   }
 
+	// pattern to process, and data at the current radius
+	public void setPattern(DataPlrIndex p)  { plr = p; currR = null; }
+	public DataPlrIndex.Row currR()         { return currR; }
+
 	// set data by label, or run command by label
 	public void setData(String s, String v)
 	{
@@ -98,11 +105,27 @@ public class DataRun {
 
 	public void runBatch() {}
 
-	public void runCurrR()  {}
+	// radius commands return false if there is no such radius
+	public boolean runCurrR()  { return loadR(VcurR);     }
+
+	public boolean runNextR()  { return loadR(VcurR + 1); }
 
-	public void runNextR()  {}
+	public boolean runPrevR()  { return loadR(VcurR - 1); }
 
-	public void runPrevR()  {}
+	// decode radius r (1-based) and make it current
+	private boolean loadR(int r) {
+		if(plr == null || r < 1 || r > plr.NR()) {
+			System.out.println("*** No radius " + r + " in current pattern");
+			return false;
+		}
+		DataPlrIndex.Row data = plr.getRow(r - 1);
+		if(data == null) {
+			return false;
+		}
+		currR = data;
+		VcurR = r;
+		return true;
+	}
 
 	public void runCut()  {}
 
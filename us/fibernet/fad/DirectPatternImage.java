@@ -0,0 +1,389 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.Closeable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import us.fibernet.fad.PatternReader.PixelType;
+
+/**
+ * A PatternImage with 32-bit signed or 16-bit unsigned pixels in a direct
+ * ByteBuffer, outside the Java heap. Large batches of frames kept this way
+ * neither fill the heap nor lengthen garbage collection.
+ *
+ * The memory is freed when close is called on the image or on any view of it;
+ * after that, every view fails with an IllegalStateException. An image that
+ * is never closed is freed by the garbage collector as usual. Each access
+ * holds the memory for its duration, so close waits for accesses in progress
+ * on other threads rather than freeing memory under them.
+ *
+ * get and set hold the memory for one pixel; code reading or writing many
+ * pixels holds it once with getPixels, setPixels or withBuffer instead. The
+ * buffer withBuffer hands to its task is valid only while the task runs, so
+ * nothing can reach the memory once freed.
+ */
+public class DirectPatternImage extends PatternImage implements Closeable {
+
+    /**
+     * Allocates DirectPatternImages; pass it to PatternReader.readPattern or
+     * TiffStackReader to decode straight into off-heap memory
+     */
+    public static final Allocator ALLOCATOR = new Allocator() {
+        public PatternImage allocate(int width, int height, PixelType type) {
+            return new DirectPatternImage(width, height, type);
+        }
+    };
+
+    /**
+     * Work on the memory of an image, see withBuffer
+     */
+    public interface BufferTask {
+        void run(ByteBuffer buf);
+    }
+
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+
+    // Unsafe.invokeCleaner, on Java 9 and later
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object u = null;
+        Method m = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            m = c.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            u = f.get(null);
+        }
+        catch(Exception e) {
+            m = null;
+        }
+        unsafe = u;
+        invokeCleaner = m;
+    }
+
+    /*
+     * the memory shared by an image and its views. accesses hold the read
+     * lock, free takes the write lock
+     */
+    private static final class Block {
+        private volatile ByteBuffer buf;
+        private final long size;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Block(long size) {
+            this.size = size;
+            this.buf = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+            allocatedBytes.addAndGet(size);
+        }
+
+        // the buffer, held until release is called
+        ByteBuffer acquire() {
+            lock.readLock().lock();
+            ByteBuffer b = buf;
+            if(b == null) {
+                lock.readLock().unlock();
+                throw new IllegalStateException("pattern image is closed");
+            }
+            return b;
+        }
+
+        void release() {
+            lock.readLock().unlock();
+        }
+
+        void free() {
+            lock.writeLock().lock();
+            try {
+                if(buf != null) {
+                    freeBuffer(buf);
+                    buf = null;
+                    allocatedBytes.addAndGet(-size);
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private final Block block;
+    private final PixelType type;
+    private final int shift;       // log2 of bytes per pixel
+
+    /**
+     * Create a width x height image of zeros
+     *
+     * @param type  INT or USHORT
+     */
+    public DirectPatternImage(int width, int height, PixelType type) {
+        this(new Block(bytes(width, height, type)), type, 0, width, height, width);
+    }
+
+    private DirectPatternImage(Block block, PixelType type, int offset, int width, int height,
+                               int stride) {
+        super((int) (block.size >> (type == PixelType.INT ? 2 : 1)), offset, width, height, stride);
+        this.block = block;
+        this.type = type;
+        this.shift = type == PixelType.INT ? 2 : 1;
+    }
+
+    /**
+     * @return  total bytes held by DirectPatternImages not yet freed
+     */
+    public static long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    public PixelType getPixelType() {
+        return type;
+    }
+
+    /**
+     * Run task on the memory of this image, held for the whole run, so close
+     * waits for it. Pixel (x, y) is the int or char at byte index(x, y) *
+     * getPixelType().size() of the buffer, in native byte order; pixels of
+     * other images sharing the memory lie outside the view, and must not be
+     * touched. The buffer must not be used after the task returns; it may be
+     * read by several threads with absolute gets.
+     *
+     * @throws IllegalStateException  if the image is closed
+     */
+    public void withBuffer(BufferTask task) {
+        ByteBuffer b = block.acquire();
+        try {
+            task.run(b.duplicate().order(b.order()));
+        }
+        finally {
+            block.release();
+        }
+    }
+
+    public int get(int x, int y) {
+        int i = offset + y * stride + x;
+        ByteBuffer b = block.acquire();
+        try {
+            return shift == 2 ? b.getInt(i << 2) : b.getChar(i << 1);
+        }
+        finally {
+            block.release();
+        }
+    }
+
+    public void set(int x, int y, int value) {
+        int i = offset + y * stride + x;
+        ByteBuffer b = block.acquire();
+        try {
+            if(shift == 2) {
+                b.putInt(i << 2, value);
+            }
+            else {
+                b.putChar(i << 1, UShortPatternImage.saturate(value));
+            }
+        }
+        finally {
+            block.release();
+        }
+    }
+
+    public void getPixels(int x, int y, int w, int h, int[] dest) {
+        checkRegion(x, y, w, h);
+        ByteBuffer b = block.acquire();
+        try {
+            if(shift == 2) {
+                IntBuffer ib = b.asIntBuffer();
+                for(int r=0; r<h; r++) {
+                    ib.position(index(x, y + r));
+                    ib.get(dest, r * w, w);
+                }
+            }
+            else {
+                for(int r=0, k=0; r<h; r++) {
+                    for(int i=index(x, y + r), end=i + w; i<end; i++) {
+                        dest[k++] = b.getChar(i << 1);
+                    }
+                }
+            }
+        }
+        finally {
+            block.release();
+        }
+    }
+
+    public void setPixels(int x, int y, int w, int h, int[] src) {
+        checkRegion(x, y, w, h);
+        ByteBuffer b = block.acquire();
+        try {
+            if(shift == 2) {
+                IntBuffer ib = b.asIntBuffer();
+                for(int r=0; r<h; r++) {
+                    ib.position(index(x, y + r));
+                    ib.put(src, r * w, w);
+                }
+            }
+            else {
+                for(int r=0, k=0; r<h; r++) {
+                    for(int i=index(x, y + r), end=i + w; i<end; i++) {
+                        b.putChar(i << 1, UShortPatternImage.saturate(src[k++]));
+                    }
+                }
+            }
+        }
+        finally {
+            block.release();
+        }
+    }
+
+    /**
+     * Copy src into this image at (x, y), in bulk where both have the same storage
+     */
+    public void copyFrom(PatternImage src, int x, int y) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        if(shift == 1 && src instanceof UShortPatternImage) {
+            checkRegion(x, y, w, h);
+            char[] data = ((UShortPatternImage) src).getData();
+            CharBuffer cb = block.acquire().asCharBuffer();
+            try {
+                for(int r=0; r<h; r++) {
+                    cb.position(index(x, y + r));
+                    cb.put(data, src.index(0, r), w);
+                }
+            }
+            finally {
+                block.release();
+            }
+        }
+        else if(shift == 2 && src instanceof IntPatternImage) {
+            checkRegion(x, y, w, h);
+            int[] data = ((IntPatternImage) src).getData();
+            IntBuffer ib = block.acquire().asIntBuffer();
+            try {
+                for(int r=0; r<h; r++) {
+                    ib.position(index(x, y + r));
+                    ib.put(data, src.index(0, r), w);
+                }
+            }
+            finally {
+                block.release();
+            }
+        }
+        else {
+            super.copyFrom(src, x, y);
+        }
+    }
+
+    public PatternImage region(int x, int y, int w, int h) {
+        checkRegion(x, y, w, h);
+        return new DirectPatternImage(block, type, index(x, y), w, h, stride);
+    }
+
+    /**
+     * @return  a compact off-heap copy of this image
+     */
+    public PatternImage copy() {
+        DirectPatternImage image = new DirectPatternImage(width, height, type);
+        image.copyFrom(this, 0, 0);
+        return image;
+    }
+
+    public void fill(int value) {
+        int[] row = new int[width];
+        Arrays.fill(row, value);
+        for(int y=0; y<height; y++) {
+            setRow(y, row);
+        }
+    }
+
+    public long sizeInBytes() {
+        return block.size;
+    }
+
+    /**
+     * @return  true once the image's memory has been freed
+     */
+    public boolean isClosed() {
+        return block.buf == null;
+    }
+
+    /**
+     * Free the memory of this image and all its views now
+     */
+    public void close() {
+        block.free();
+    }
+
+    private static long bytes(int width, int height, PixelType type) {
+        if(type != PixelType.INT && type != PixelType.USHORT) {
+            throw new IllegalArgumentException("no " + type + " image storage");
+        }
+        long n = (long) checkedSize(width, height) * type.size();
+        if(n > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("image too large for a direct buffer: "
+                    + width + "x" + height + " " + type);
+        }
+        return n;
+    }
+
+    /*
+     * Release the native memory of a direct buffer now, rather than when it is
+     * garbage collected: through Unsafe.invokeCleaner on Java 9 and later, or
+     * the buffer's Cleaner on Java 8. If neither is reachable the memory is
+     * left to the collector.
+     */
+    private static void freeBuffer(ByteBuffer buf) {
+        try {
+            if(invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buf);
+            }
+            else {
+                Method cleaner = buf.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buf);
+                if(c != null) {
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+            }
+        }
+        catch(Exception e) {
+            // freed when collected
+        }
+    }
+}
@@ -16,12 +16,19 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 
 public class EndianCorrectInputStream extends DataInputStream {
 
+    private static final int BULK_SIZE = 64 * 1024;
+
     private boolean bigendian = true;
 
+    private byte[] bulk;        // reusable buffer for the bulk read methods
+    private ByteBuffer bulkView;
+
     /**
      * Constructor for a disk file.
      *
@@ -160,11 +167,7 @@ public class EndianCorrectInputStream extends DataInputStream {
         }
 
         else {
-            int x = readUnsignedByte();
-            x |= ((int) readUnsignedByte()) << 8;
-            x |= ((int) readUnsignedByte()) << 16;
-            x |= ((int) readUnsignedByte()) << 24;
-            val = (float) Float.intBitsToFloat(x);
+            val = Float.intBitsToFloat(Integer.reverseBytes(readInt()));
         }
         return val;
     }
@@ -187,15 +190,7 @@ public class EndianCorrectInputStream extends DataInputStream {
         if (bigendian) {
             val = readDouble();
         } else {
-            long x = readUnsignedByte();
-            x |= ((long) readUnsignedByte()) << 8;
-            x |= ((long) readUnsignedByte()) << 16;
-            x |= ((long) readUnsignedByte()) << 24;
-            x |= ((long) readUnsignedByte()) << 32;
-            x |= ((long) readUnsignedByte()) << 40;
-            x |= ((long) readUnsignedByte()) << 48;
-            x |= ((long) readUnsignedByte()) << 56;
-            val = Double.longBitsToDouble(x);
+            val = Double.longBitsToDouble(Long.reverseBytes(readLong()));
         }
         return val;
     }
@@ -210,4 +205,92 @@ public class EndianCorrectInputStream extends DataInputStream {
         return Double.longBitsToDouble(y);
     }
 
+    /**
+     * readShorts will fill dst[off, off + len) with shorts from the stream
+     */
+    public void readShorts(short[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 2);
+            fillBulk(n * 2).asShortBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * readChars will fill dst[off, off + len) with unsigned shorts from the stream
+     */
+    public void readChars(char[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 2);
+            fillBulk(n * 2).asCharBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * readInts will fill dst[off, off + len) with ints from the stream
+     */
+    public void readInts(int[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 4);
+            fillBulk(n * 4).asIntBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * readLongs will fill dst[off, off + len) with longs from the stream
+     */
+    public void readLongs(long[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 8);
+            fillBulk(n * 8).asLongBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * readFloats will fill dst[off, off + len) with floats from the stream
+     */
+    public void readFloats(float[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 4);
+            fillBulk(n * 4).asFloatBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * readDoubles will fill dst[off, off + len) with doubles from the stream
+     */
+    public void readDoubles(double[] dst, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BULK_SIZE / 8);
+            fillBulk(n * 8).asDoubleBuffer().get(dst, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /*
+     * Read nbytes (<= BULK_SIZE) into the bulk buffer and return a view of
+     * them in the stream's byte order. The view does the swapping.
+     */
+    private ByteBuffer fillBulk(int nbytes) throws IOException {
+        if (bulk == null) {
+            bulk = new byte[BULK_SIZE];
+            bulkView = ByteBuffer.wrap(bulk);
+        }
+        readFully(bulk, 0, nbytes);
+        bulkView.clear();
+        bulkView.limit(nbytes);
+        bulkView.order(bigendian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        return bulkView;
+    }
+
 }
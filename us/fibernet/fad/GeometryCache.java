@@ -0,0 +1,156 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of the tables derived from a geometry: the polar
+ * index maps of DataPlr, the sparse matrices of PolarRegridder and the
+ * reciprocal-space tables of ReciprocalGeometry. All share one byte budget
+ * and are evicted least recently used first once their total size exceeds
+ * it. Keys are prefixed with the owning class, so each can clear its own.
+ *
+ * The budget is taken from the system property fad.geometry.bytes, or else
+ * is an eighth of the maximum heap. A table larger than the budget is not
+ * kept.
+ */
+final class GeometryCache {
+
+    private static final Map<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(8, 0.75f, true);
+
+    private static long budget = defaultBudget();
+    private static long residentBytes;
+
+    private static final class Entry {
+        final Object value;
+        long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private GeometryCache() {
+    }
+
+    /**
+     * @return  the value cached under key, or null
+     */
+    static synchronized Object get(String key) {
+        Entry e = entries.get(key);
+        return e != null ? e.value : null;
+    }
+
+    /**
+     * Keep value, of size bytes, under key; then evict to the budget
+     */
+    static synchronized void put(String key, Object value, long bytes) {
+        if(bytes > budget) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(value, bytes));
+        if(old != null) {
+            residentBytes -= old.size;
+        }
+        residentBytes += bytes;
+        trim();
+    }
+
+    /**
+     * Count bytes more for a cached value that has grown, e.g., built a
+     * lazy table; then evict to the budget. Nothing if value is not cached.
+     */
+    static synchronized void charge(Object value, long bytes) {
+        for(Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if(e.value == value) {
+                e.size += bytes;
+                residentBytes += bytes;
+                if(e.size > budget) {
+                    residentBytes -= e.size;
+                    it.remove();
+                }
+                break;
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Drop the entries whose keys start with prefix
+     */
+    static synchronized void clear(String prefix) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            if(e.getKey().startsWith(prefix)) {
+                residentBytes -= e.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param bytes  new byte budget; entries are evicted to fit it
+     */
+    static synchronized void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        trim();
+    }
+
+    static synchronized long getBudget()         { return budget;         }
+    static synchronized long getResidentBytes()  { return residentBytes;  }
+    static synchronized int size()               { return entries.size(); }
+
+    private static void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(residentBytes > budget && it.hasNext()) {
+            residentBytes -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private static long defaultBudget() {
+        try {
+            String s = System.getProperty("fad.geometry.bytes");
+            if(s != null) {
+                return Long.parseLong(s.trim());
+            }
+        }
+        catch(NumberFormatException e) {
+            System.out.println("Invalid fad.geometry.bytes, using default");
+        }
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+}
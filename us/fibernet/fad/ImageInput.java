@@ -28,6 +28,13 @@
 
 package us.fibernet.fad;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import javax.swing.SwingWorker;
+
 /**
  * image reading demo
  *
@@ -46,7 +53,7 @@ public final class ImageInput {
         long start = System.nanoTime();
         double radius = 200;
 
-        int[][] testImage = PatternReader.readPattern(args);
+        PatternImage testImage = PatternReader.readPattern(args);
 
         if (testImage != null) {
             PatternGUI pg = new PatternGUI(testImage, "ImageInput Image", radius);
@@ -55,4 +62,112 @@ public final class ImageInput {
                     + (System.nanoTime() - start) / 1000000000 + " seconds");
         }
     }
+
+    /**
+     * Read a pattern and prepare its display arrays on a background thread,
+     * then create and show the PatternGUI on the event dispatch thread. While
+     * loading, progress and a Cancel button are shown in the main window's
+     * message panel. Must be called on the event dispatch thread.
+     *
+     * @return  the running worker, which may be cancelled
+     */
+    public static SwingWorker<PatternGUI.DisplayArrays, String> getInputImageInBackground(
+            final String... args) {
+
+        final UIMessage message = UIMain.getUIMessage();
+        final String name = args.length > 0 ? args[0] : "";
+        final long start = System.nanoTime();
+        final double radius = 200;
+
+        final SwingWorker<PatternGUI.DisplayArrays, String> worker =
+                new SwingWorker<PatternGUI.DisplayArrays, String>() {
+
+            private DataPlrIndex plr;   // for the RUN tab, if a PLR file
+
+            @Override
+            protected PatternGUI.DisplayArrays doInBackground() {
+                plr = openIndex(name);
+                String key = PatternCache.keyOf(args);
+                PatternGUI.DisplayArrays arrays = PatternCache.getDisplayArrays(key);
+                if(arrays != null) {
+                    return arrays;
+                }
+                PatternImage image = PatternReader.readPattern(key, args);
+                if(image == null || isCancelled()) {
+                    return null;
+                }
+                publish("Preparing " + name);
+                setProgress(50);
+                arrays = new PatternGUI.DisplayArrays(image);
+                PatternCache.putDisplayArrays(key, arrays);
+                setProgress(90);
+                return arrays;
+            }
+
+            @Override
+            protected void process(List<String> stages) {
+                if(message != null) {
+                    message.setProgress(stages.get(stages.size() - 1), getProgress());
+                }
+            }
+
+            @Override
+            protected void done() {
+                String status;
+                try {
+                    PatternGUI.DisplayArrays arrays = get();
+                    if(arrays == null) {
+                        status = "Could not read " + name;
+                    }
+                    else {
+                        DataControl.run.setPattern(plr);
+                        PatternGUI pg = new PatternGUI(arrays, "ImageInput Image", radius);
+                        pg.render();
+                        status = "Opened " + name;
+                        System.out.println("Initialization takes: "
+                                + (System.nanoTime() - start) / 1000000000 + " seconds");
+                    }
+                }
+                catch(CancellationException e) {
+                    status = "Open cancelled";
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                    status = "Could not read " + name;
+                }
+                if(message != null) {
+                    message.stopProgress(status);
+                }
+                else {
+                    System.out.println(status);
+                }
+            }
+        };
+
+        if(message != null) {
+            message.startProgress("Reading " + name, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    worker.cancel(true);
+                }
+            });
+        }
+        worker.execute();
+        return worker;
+    }
+
+    /*
+     * index of a plain PLR file, for per-radius access; null for other files
+     */
+    private static DataPlrIndex openIndex(String fname) {
+        if(!fname.toLowerCase().endsWith(".plr")) {
+            return null;
+        }
+        try {
+            return DataPlrIndex.open(fname);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 }
@@ -31,6 +31,7 @@ package us.fibernet.fad;
 import java.util.*;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.WritableRaster;
 import java.io.*;
 import javax.swing.ImageIcon;
@@ -107,19 +108,27 @@ public class ImageUtil {
     }
 
     /**
-     * Given a int[][], return a smaller int[][] by skipping some elements in
-     * the original int[][]
+     * Given a PatternImage, return a smaller PatternImage by skipping some
+     * pixels of the original, with the same storage. An image already small
+     * enough is returned as is.
      */
-    static int[][] shrinkArray(int[][] original) {
+    static PatternImage shrinkArray(PatternImage original) {
         int optimalSize = 500;// the pixel number to achieve good image
-        int shrinkFactor = Math.max(original.length, original[0].length)
+        int shrinkFactor = Math.max(original.getWidth(), original.getHeight())
                 / optimalSize;
-        int[][] output = new int[original.length / shrinkFactor][original[0].length
-                / shrinkFactor];
-        for (int r = 0; r * shrinkFactor < original.length; r++)
-            for (int c = 0; c * shrinkFactor < original.length; c++) {
-                output[r][c] = original[r * shrinkFactor][c * shrinkFactor];
+        if (shrinkFactor <= 1)
+            return original;
+        PatternImage output = original.newImage(original.getWidth() / shrinkFactor,
+                original.getHeight() / shrinkFactor);
+        int[] in = new int[original.getWidth()];    // whole rows: one access each
+        int[] out = new int[output.getWidth()];
+        for (int r = 0; r < output.getHeight(); r++) {
+            original.getRow(r * shrinkFactor, in);
+            for (int c = 0; c < out.length; c++) {
+                out[c] = in[c * shrinkFactor];
             }
+            output.setRow(r, out);
+        }
         return output;
     }
 
@@ -159,30 +168,38 @@ public class ImageUtil {
      *            2D array
      * @param numColors
      *            the number of colors used
-     * @return
+     * @return color indexes in 16-bit storage
      */
-    static int[][] convertImage(int[][] input, int numColors) {
-        int[][] output = new int[input.length][input[0].length];
+    static PatternImage convertImage(PatternImage input, int numColors) {
+        int width = input.getWidth();
+        int height = input.getHeight();
+        PatternImage output = new UShortPatternImage(width, height);
+        int[] in = new int[width];
+        int[] out = new int[width];
         int max = Integer.MIN_VALUE;
         int min = Integer.MAX_VALUE;
-        for (int i = 0; i < output.length; i++)
-            for (int j = 0; j < output[0].length; j++) {
-                if (input[i][j] > max)
-                    max = input[i][j];
-                else if (input[i][j] < min && min != 0)
-                    min = input[i][j];
+        for (int y = 0; y < height; y++) {
+            input.getRow(y, in);
+            for (int x = 0; x < width; x++) {
+                if (in[x] > max)
+                    max = in[x];
+                else if (in[x] < min && min != 0)
+                    min = in[x];
             }
+        }
         double factor = (double) (max - min) / numColors + 1;
 
         // System.out.println("max double: "+max+" factor: "+factor);
 
-        for (int i = 0; i < output.length; i++) {
-            for (int j = 0; j < output[0].length; j++) {
-                if (input[i][j] < min)
-                    output[i][j] = 0;
+        for (int y = 0; y < height; y++) {
+            input.getRow(y, in);
+            for (int x = 0; x < width; x++) {
+                if (in[x] < min)
+                    out[x] = 0;
                 else
-                    output[i][j] = (int) ((input[i][j] - min) / factor);
+                    out[x] = (int) ((in[x] - min) / factor);
             }
+            output.setRow(y, out);
         }
         return output;
     }
@@ -191,13 +208,14 @@ public class ImageUtil {
      *
      * @param array
      *            a 2D double[][] array
-     * @return 2D int[][] array
+     * @return PatternImage of the truncated values
      */
-    static int[][] doubleToInt(double[][] array) {
-        int[][] output = new int[array.length][array[0].length];
+    static PatternImage doubleToInt(double[][] array) {
+        IntPatternImage output = new IntPatternImage(array[0].length, array.length);
+        int[] out = output.getData();
         for (int r = 0; r < array.length; r++)
-            for (int c = 0; c < array[0].length; c++)
-                output[r][c] = (int) array[r][c];
+            for (int c = 0, o = output.index(0, r); c < array[0].length; c++)
+                out[o++] = (int) array[r][c];
         return output;
     }
 
@@ -329,41 +347,37 @@ public class ImageUtil {
     }
 
     /**
-     * Given a 2D array, return a image with the default color table
+     * Given an image of color indexes, return a image with the default color
+     * table. Pixels are written straight into the image's RGB data buffer.
      *
      * @param input
-     *            2D array
+     *            color indexes
      * @return BufferedImage using the default color table
      * @throws IOException
      */
-    static BufferedImage getImage(int[][] input) throws IOException {
+    static BufferedImage getImage(PatternImage input) throws IOException {
 
-        int width, height;
-        int unit = 1;// for higher resolution
-        height = input.length * unit;
-        width = input[0].length * unit;
+        int width = input.getWidth();
+        int height = input.getHeight();
         // System.out.println("width: "+width+" height: "+height);
         byte[] red = colors.getRed();
         byte[] green = colors.getGreen();
         byte[] blue = colors.getBlue();
 
+        int[] rgb = new int[red.length];
+        for (int c = 0; c < rgb.length; c++) {
+            rgb[c] = (red[c] & 0xff) << 16 | (green[c] & 0xff) << 8 | (blue[c] & 0xff);
+        }
+
         BufferedImage im = new BufferedImage(width, height,
                 BufferedImage.TYPE_INT_RGB);
-        WritableRaster raster = im.getRaster();
-
-        int[] r = new int[unit * unit];
-        int[] g = new int[unit * unit];
-        int[] b = new int[unit * unit];
+        int[] pixels = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+        int[] in = new int[width];
 
-        for (int i = 0; i < width; i += unit) {
-            for (int j = 0; j < height; j += unit) {
-                int color = input[j / unit][i / unit];
-                Arrays.fill(r, red[color]);
-                Arrays.fill(g, green[color]);
-                Arrays.fill(b, blue[color]);
-                raster.setSamples(i, j, unit, unit, 0, r);
-                raster.setSamples(i, j, unit, unit, 1, g);
-                raster.setSamples(i, j, unit, unit, 2, b);
+        for (int j = 0, p = 0; j < height; j++) {
+            input.getRow(j, in);
+            for (int i = 0; i < width; i++) {
+                pixels[p++] = rgb[in[i]];
             }
         }
         return im;
@@ -427,20 +441,20 @@ public class ImageUtil {
     }
 
     /**
-     * display the image in the form of int[][]. Use to check 2D array.
+     * display the pixel values of an image. Use to check 2D array.
      *
      * @param image
      *            input image
      */
-    public static void displayArray(int[][] image) {
-        for (int i = 0; i < image.length; i++) {
-            for (int j = 0; j < image[0].length; j++) {
-                System.out.print(image[i][j] + " ");
+    public static void displayArray(PatternImage image) {
+        for (int i = 0; i < image.getHeight(); i++) {
+            for (int j = 0; j < image.getWidth(); j++) {
+                System.out.print(image.get(j, i) + " ");
             }
             System.out.println();
         }
-        System.out.println("image width: " + image[0].length + " height: "
-                + image.length);
+        System.out.println("image width: " + image.getWidth() + " height: "
+                + image.getHeight());
     }
 
 }
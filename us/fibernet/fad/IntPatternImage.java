@@ -0,0 +1,120 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.util.Arrays;
+
+import us.fibernet.fad.PatternReader.PixelType;
+
+/**
+ * A PatternImage with 32-bit signed pixels in an int array
+ */
+public class IntPatternImage extends PatternImage {
+
+    private final int[] data;
+
+    /**
+     * Create a width x height image of zeros
+     */
+    public IntPatternImage(int width, int height) {
+        this(new int[checkedSize(width, height)], 0, width, height, width);
+    }
+
+    /**
+     * Wrap data as an image without copying
+     *
+     * @param offset  index of pixel (0, 0) in data
+     * @param stride  distance in data between vertically adjacent pixels
+     */
+    public IntPatternImage(int[] data, int offset, int width, int height, int stride) {
+        super(data.length, offset, width, height, stride);
+        this.data = data;
+    }
+
+    public PixelType getPixelType() {
+        return PixelType.INT;
+    }
+
+    /**
+     * @return  the backing array; pixel (x, y) is at index(x, y)
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    public int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    public void set(int x, int y, int value) {
+        data[offset + y * stride + x] = value;
+    }
+
+    public void getPixels(int x, int y, int w, int h, int[] dest) {
+        checkRegion(x, y, w, h);
+        for(int r=0; r<h; r++) {
+            System.arraycopy(data, index(x, y + r), dest, r * w, w);
+        }
+    }
+
+    public void setPixels(int x, int y, int w, int h, int[] src) {
+        checkRegion(x, y, w, h);
+        for(int r=0; r<h; r++) {
+            System.arraycopy(src, r * w, data, index(x, y + r), w);
+        }
+    }
+
+    public PatternImage region(int x, int y, int w, int h) {
+        checkRegion(x, y, w, h);
+        return new IntPatternImage(data, index(x, y), w, h, stride);
+    }
+
+    public PatternImage copy() {
+        if(isContiguous()) {
+            return new IntPatternImage(Arrays.copyOfRange(data, offset, offset + width * height),
+                                       0, width, height, width);
+        }
+        IntPatternImage image = new IntPatternImage(width, height);
+        for(int y=0; y<height; y++) {
+            System.arraycopy(data, index(0, y), image.data, y * width, width);
+        }
+        return image;
+    }
+
+    public void fill(int value) {
+        for(int y=0; y<height; y++) {
+            int i = index(0, y);
+            Arrays.fill(data, i, i + width, value);
+        }
+    }
+
+    public long sizeInBytes() {
+        return 16 + 4L * data.length;
+    }
+}
@@ -34,7 +34,7 @@ package us.fibernet.fad;
 public final class MenuDataMain extends MenuDataImpl {
 
     private static final String[][] MENU_NAMES = {
-        { "File",    /**/ "Open", "Save", "Close", "Exit" },
+        { "File",    /**/ "Open", "Watch", "Save", "Close", "Exit" },
         { "Data",    /**/ "Input", "Output", "Background" },
         { "Option",  /**/ "Plot", "Output"},
         { "Window",  /**/ "Pattern", "Log" },
@@ -34,6 +34,7 @@ package us.fibernet.fad;
 public class MenuHandlerMain implements MenuHandler {
 
     public void fileOpen() {}
+    public void fileWatch() {}
     public void fileSave() {}
     public void fileClose() {}
     public void fileExit() {}
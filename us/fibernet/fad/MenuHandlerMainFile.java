@@ -28,8 +28,11 @@
 
 package us.fibernet.fad;
 
+import java.awt.EventQueue;
 import java.io.File;
+import java.io.IOException;
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 
 
 
@@ -38,6 +41,8 @@ import javax.swing.JFileChooser;
  */
 public class MenuHandlerMainFile extends MenuHandlerMain {
 
+    private PatternWatcher watcher;  // File -> Watch, null if not watching
+
     /*
      * File -> Open
      */
@@ -47,13 +52,104 @@ public class MenuHandlerMainFile extends MenuHandlerMain {
         int response = fc.showOpenDialog(null);
         if(response == JFileChooser.APPROVE_OPTION) {
             File file = fc.getSelectedFile();
-            ImageInput.getInputImage(file.getAbsolutePath());
+            ImageInput.getInputImageInBackground(file.getAbsolutePath());
         }
         else {
             System.out.println("Open command cancelled");
         }
     }
 
+    /*
+     * File -> Watch: start or stop watching a directory for new frames
+     */
+    @Override
+    public void fileWatch() {
+
+        if(watcher != null) {
+            int response = JOptionPane.showConfirmDialog(null,
+                    "Stop watching " + watcher.getDirectory() + "?", "Watch",
+                    JOptionPane.YES_NO_OPTION);
+            if(response == JOptionPane.YES_OPTION) {
+                watcher.stop();
+                watcher = null;
+                showMessage("Stopped watching");
+            }
+            return;
+        }
+
+        JFileChooser fc = new JFileChooser(System.getProperty("user.dir"));
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if(fc.showOpenDialog(null) != JFileChooser.APPROVE_OPTION) {
+            System.out.println("Watch command cancelled");
+            return;
+        }
+
+        // DAT frames carry no size, so it is asked for; none skips them
+        String size = JOptionPane.showInputDialog(null,
+                "Width and height of DAT frames, or blank to skip DAT files:", "Watch",
+                JOptionPane.QUESTION_MESSAGE);
+        if(size == null) {
+            System.out.println("Watch command cancelled");
+            return;
+        }
+        String[] datArgs = size.trim().length() > 0 ? size.trim().split("[\\s,x]+")
+                                                     : new String[0];
+        if(datArgs.length == 1 || !isDimensions(datArgs)) {
+            showMessage("DAT frame size must be a width and a height: " + size);
+            return;
+        }
+
+        // notify only: frames are announced as they arrive, not yet processed
+        File dir = fc.getSelectedFile();
+        watcher = new PatternWatcher(dir.toPath(), new PatternWatcher.Processor() {
+            public void process(String fname, PatternImage image) {
+                showMessage("Received " + new File(fname).getName() + " ("
+                        + image.getWidth() + "x" + image.getHeight() + ")");
+            }
+
+            public void failed(String fname) {
+                showMessage("Could not read " + new File(fname).getName());
+            }
+        });
+        watcher.setDatArgs(datArgs);
+        try {
+            watcher.start();
+            showMessage("Watching " + dir);
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+            watcher = null;
+            showMessage("Could not watch " + dir);
+        }
+    }
+
+    // true if args are all positive integers
+    private static boolean isDimensions(String[] args) {
+        try {
+            for(String a : args) {
+                if(Integer.parseInt(a) <= 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void showMessage(final String message) {
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                UIMessage ui = UIMain.getUIMessage();
+                if(ui != null) {
+                    ui.setMessage(message);
+                }
+                System.out.println(message);
+            }
+        });
+    }
+
     /*
      * File -> Save
      */
@@ -0,0 +1,103 @@
+/*
+ * Copyright Billy Zheng. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join helper for running a loop over an index range on the common pool.
+ * The range is split in halves until a piece is no larger than the grain size.
+ */
+final class ParallelUtil {
+
+    /**
+     * Body of a parallel loop, run on the sub-range [from, to)
+     */
+    interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private ParallelUtil() {
+    }
+
+    /**
+     * Run task over [from, to) in pieces of at most grain indexes. Returns
+     * when all pieces are done; an unchecked exception thrown by a piece is
+     * rethrown here.
+     */
+    static void forRange(int from, int to, int grain, RangeTask task) {
+
+        if(grain < 1) {
+            grain = 1;
+        }
+
+        if(to - from <= grain || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            if(from < to) {
+                task.run(from, to);
+            }
+            return;
+        }
+
+        ForkJoinPool.commonPool().invoke(new RangeAction(from, to, grain, task));
+    }
+
+    /**
+     * @return  a grain size giving each worker of the common pool a few pieces of n
+     */
+    static int grainFor(int n) {
+        return Math.max(1, n / (4 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    @SuppressWarnings("serial")
+    private static class RangeAction extends RecursiveAction {
+
+        private final int from, to, grain;
+        private final RangeTask task;
+
+        RangeAction(int from, int to, int grain, RangeTask task) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= grain) {
+                task.run(from, to);
+            }
+            else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeAction(from, mid, grain, task),
+                          new RangeAction(mid, to, grain, task));
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of decoded patterns, used by PatternReader.readPattern
+ * so that File->Open and batch loading share it. Entries are keyed by the
+ * file's canonical path, modification time and size (plus any DAT arguments)
+ * and are evicted least recently used first once their total size exceeds
+ * the byte budget.
+ *
+ * The display arrays PatternGUI builds from a pattern may be kept with it,
+ * so a pattern opened again skips their setup too; they count towards the
+ * budget and are evicted with the pattern.
+ *
+ * The budget is taken from the system property fad.cache.bytes, or else is a
+ * quarter of the maximum heap. Cached images are shared: callers must not
+ * modify them.
+ */
+public final class PatternCache {
+
+    private static final Map<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private static long budget = defaultBudget();
+    private static long residentBytes;
+    private static long hits, misses, evictions;
+
+    private static final class Entry {
+        final PatternImage image;
+        PatternGUI.DisplayArrays arrays;    // null until cached
+        long size;
+
+        Entry(PatternImage image) {
+            this.image = image;
+            this.size = sizeOf(image);
+        }
+    }
+
+    private PatternCache() {
+    }
+
+    /**
+     * @return  the cache key of readPattern arguments args: canonical path,
+     *          mtime and size of args[0], then the other arguments; null if
+     *          the file does not exist, and such a pattern is not cached
+     */
+    public static String keyOf(String... args) {
+        if(args == null || args.length < 1) {
+            return null;
+        }
+        try {
+            File f = new File(args[0]);
+            if(!f.isFile()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder(f.getCanonicalPath());
+            sb.append('|').append(f.lastModified()).append('|').append(f.length());
+            for(int i=1; i<args.length; i++) {
+                sb.append('|').append(args[i]);
+            }
+            return sb.toString();
+        }
+        catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key  from keyOf, may be null
+     * @return  the cached image, or null
+     */
+    public static synchronized PatternImage get(String key) {
+        Entry e = key == null ? null : entries.get(key);
+        if(e != null) {
+            ++hits;
+            return e.image;
+        }
+        ++misses;
+        return null;
+    }
+
+    /**
+     * Cache image under key, then evict least recently used entries until
+     * within budget. An image larger than the whole budget is not cached.
+     *
+     * @param key  from keyOf, may be null
+     */
+    public static synchronized void put(String key, PatternImage image) {
+        long size = sizeOf(image);
+        if(key == null || image == null || size > budget) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(image));
+        if(old != null) {
+            residentBytes -= old.size;
+        }
+        residentBytes += size;
+        trim();
+    }
+
+    /**
+     * @return  the display arrays cached with the pattern of key, or null.
+     *          Only a found one is counted, as a hit; on null the caller
+     *          reads the pattern, and that lookup is the one counted.
+     */
+    static synchronized PatternGUI.DisplayArrays getDisplayArrays(String key) {
+        Entry e = key == null ? null : entries.get(key);
+        if(e != null && e.arrays != null) {
+            ++hits;
+            return e.arrays;
+        }
+        return null;
+    }
+
+    /**
+     * Keep arrays with the cached pattern of key, if arrays were built from
+     * it; then evict to the budget
+     */
+    static synchronized void putDisplayArrays(String key, PatternGUI.DisplayArrays arrays) {
+        Entry e = key == null ? null : entries.get(key);
+        if(e == null || e.arrays != null || e.image != arrays.input) {
+            return;
+        }
+        long extra = sizeOf(arrays.colorIndexes)
+                   + (arrays.shrunk != arrays.input ? sizeOf(arrays.shrunk) : 0);
+        if(e.size + extra > budget) {
+            return;
+        }
+        e.arrays = arrays;
+        e.size += extra;
+        residentBytes += extra;
+        trim();
+    }
+
+    /**
+     * @param bytes  new byte budget; entries are evicted to fit it
+     */
+    public static synchronized void setBudget(long bytes) {
+        budget = Math.max(0, bytes);
+        trim();
+    }
+
+    public static synchronized long getBudget()         { return budget;         }
+    public static synchronized long getResidentBytes()  { return residentBytes;  }
+    public static synchronized long getHits()           { return hits;           }
+    public static synchronized long getMisses()         { return misses;         }
+    public static synchronized long getEvictions()      { return evictions;      }
+    public static synchronized int size()               { return entries.size(); }
+
+    /**
+     * Drop all entries. Statistics are kept.
+     */
+    public static synchronized void clear() {
+        entries.clear();
+        residentBytes = 0;
+    }
+
+    public static synchronized String getStats() {
+        return "PatternCache: " + entries.size() + " patterns, " + residentBytes + " of "
+             + budget + " bytes, hits=" + hits + ", misses=" + misses
+             + ", evictions=" + evictions;
+    }
+
+    private static void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(residentBytes > budget && it.hasNext()) {
+            residentBytes -= it.next().size;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    private static long sizeOf(PatternImage image) {
+        return image == null ? 0 : image.sizeInBytes();
+    }
+
+    private static long defaultBudget() {
+        try {
+            String s = System.getProperty("fad.cache.bytes");
+            if(s != null) {
+                return Long.parseLong(s.trim());
+            }
+        }
+        catch(NumberFormatException e) {
+            System.out.println("Invalid fad.cache.bytes, using default");
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+}
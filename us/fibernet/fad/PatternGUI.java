@@ -66,10 +66,10 @@ public class PatternGUI {
     private BufferedImage imageCache;
     // private BufferedImage originalImage;
     private JLabel imageLabel;
-    private int[][] originalInputArray;// double[][] to int[][], not skipped
-    private int[][] originalImageArray; // original array for images, input
-                                        // pixels may get skipped
-    private int[][] imageArray; // converted to color indexes
+    private PatternImage originalInputArray;// double[][] to int, not skipped
+    private PatternImage originalImageArray; // original array for images, input
+                                             // pixels may get skipped
+    private PatternImage imageArray; // converted to color indexes
     private ColormapControlGUI control;
     private double radius;
     private boolean linesEnabled;
@@ -99,21 +99,44 @@ public class PatternGUI {
         initialize(fileName);
     }
 
-    public PatternGUI(int[][] imageArray, String fileName) {
+    public PatternGUI(PatternImage imageArray, String fileName) {
         this(imageArray, fileName, 200);
     }
 
-    public PatternGUI(int[][] imageArray, String fileName, double radius) {
-        System.out.println("Image :" + imageArray.length + " "
-                + imageArray[0].length);
+    public PatternGUI(PatternImage imageArray, String fileName, double radius) {
+        this(new DisplayArrays(imageArray), fileName, radius);
+    }
+
+    /**
+     * Create the window from arrays prepared beforehand, e.g., on a
+     * background thread. Must be called on the event dispatch thread.
+     */
+    PatternGUI(DisplayArrays arrays, String fileName, double radius) {
         this.radius = radius;
-        this.originalInputArray = imageArray;
-        this.originalImageArray = ImageUtil
-                .shrinkArray(this.originalInputArray);
-        this.imageArray = ImageUtil.convertImage(this.originalImageArray, 256);
+        this.originalInputArray = arrays.input;
+        this.originalImageArray = arrays.shrunk;
+        this.imageArray = arrays.colorIndexes;
         initialize(fileName);
     }
 
+    /**
+     * The arrays a PatternGUI displays, computed from the input pattern.
+     * Needs no Swing, so it can be built off the event dispatch thread.
+     */
+    static final class DisplayArrays {
+
+        final PatternImage input;         // not skipped
+        final PatternImage shrunk;        // input pixels may get skipped
+        final PatternImage colorIndexes;  // shrunk converted to color indexes
+
+        DisplayArrays(PatternImage input) {
+            System.out.println("Image :" + input.getHeight() + " " + input.getWidth());
+            this.input = input;
+            this.shrunk = ImageUtil.shrinkArray(input);
+            this.colorIndexes = ImageUtil.convertImage(this.shrunk, 256);
+        }
+    }
+
     /**
      * Initialize the contents of the frame.
      */
@@ -214,7 +237,7 @@ public class PatternGUI {
      * To generate new image based one the originalArray. Used by
      * colorControlGUI
      */
-    void generateImage(int[][] imageArray) {
+    void generateImage(PatternImage imageArray) {
         // this.imageCache =
         // this.image==null?null:ImageUtil.copyImage(this.image);
         BufferedImage image = null;
@@ -0,0 +1,288 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import us.fibernet.fad.PatternReader.PixelType;
+
+/**
+ * A 2D pattern image held in one contiguous primitive array, row after row.
+ *
+ * Pixel (x, y) is at offset + y * stride + x of the backing array; x is the
+ * column and y the row, i.e., image[y][x] of the equivalent int[][]. Row and
+ * region views share the array of the image they are taken from, so writes
+ * through a view are seen by the image and the other way round.
+ *
+ * Storage is either 32-bit signed (IntPatternImage) or 16-bit unsigned
+ * (UShortPatternImage), the native depth of most detectors, on the heap; or
+ * either of the two off the heap (DirectPatternImage). Pixels are widened to
+ * int as they are read, so code that does arithmetic on them works on all
+ * through get, getRow and getPixels.
+ */
+public abstract class PatternImage {
+
+    /**
+     * Creates the images a reader decodes into, e.g., HEAP or
+     * DirectPatternImage.ALLOCATOR
+     */
+    public interface Allocator {
+        PatternImage allocate(int width, int height, PixelType type);
+    }
+
+    /**
+     * Allocates images on the heap with create(width, height, type)
+     */
+    public static final Allocator HEAP = new Allocator() {
+        public PatternImage allocate(int width, int height, PixelType type) {
+            return create(width, height, type);
+        }
+    };
+
+    protected final int offset;
+    protected final int width;
+    protected final int height;
+    protected final int stride;
+
+    /**
+     * @param length  length of the backing array
+     */
+    protected PatternImage(int length, int offset, int width, int height, int stride) {
+        if(width < 0 || height < 0 || stride < width || offset < 0
+                || (height > 0 && offset + (long) (height - 1) * stride + width > length)) {
+            throw new IllegalArgumentException("bad image layout: " + width + "x" + height
+                    + " stride " + stride + " offset " + offset + " in " + length);
+        }
+        this.offset = offset;
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+    }
+
+    /**
+     * @return  a width x height image of zeros with 32-bit storage
+     */
+    public static PatternImage create(int width, int height) {
+        return new IntPatternImage(width, height);
+    }
+
+    /**
+     * @param type  INT, or USHORT for 16-bit unsigned storage
+     * @return  a width x height image of zeros
+     */
+    public static PatternImage create(int width, int height, PixelType type) {
+        switch(type) {
+        case INT:
+            return new IntPatternImage(width, height);
+        case USHORT:
+            return new UShortPatternImage(width, height);
+        default:
+            throw new IllegalArgumentException("no " + type + " image storage");
+        }
+    }
+
+    /**
+     * @return  a copy of a rectangular int[][], indexed [row][column]
+     */
+    public static PatternImage fromArray(int[][] array) {
+        if(array == null) {
+            return null;
+        }
+        int height = array.length;
+        int width = height > 0 ? array[0].length : 0;
+        PatternImage image = new IntPatternImage(width, height);
+        for(int y=0; y<height; y++) {
+            image.setRow(y, array[y]);
+        }
+        return image;
+    }
+
+    /**
+     * @return  a copy of the image as int[][], indexed [row][column]
+     */
+    public int[][] toArray() {
+        int[][] array = new int[height][];
+        for(int y=0; y<height; y++) {
+            array[y] = getRow(y, new int[width]);
+        }
+        return array;
+    }
+
+    /**
+     * @return  INT or USHORT
+     */
+    public abstract PixelType getPixelType();
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return  index of pixel (x, y) in the backing array
+     */
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    public abstract int get(int x, int y);
+
+    /**
+     * Set pixel (x, y); 16-bit storage saturates value to [0, 65535]
+     */
+    public abstract void set(int x, int y, int value);
+
+    /**
+     * Copy the w x h rectangle at (x, y) into dest[0, w * h), row after row,
+     * widened to int
+     */
+    public abstract void getPixels(int x, int y, int w, int h, int[] dest);
+
+    /**
+     * Copy src[0, w * h) into the w x h rectangle at (x, y), as set does
+     */
+    public abstract void setPixels(int x, int y, int w, int h, int[] src);
+
+    /**
+     * @return  a view of the w x h rectangle at (x, y), sharing this image's data
+     */
+    public abstract PatternImage region(int x, int y, int w, int h);
+
+    /**
+     * @return  a compact copy of this image with the same storage, not sharing data
+     */
+    public abstract PatternImage copy();
+
+    public abstract void fill(int value);
+
+    /**
+     * @return  approximate size of the pixel storage in bytes
+     */
+    public abstract long sizeInBytes();
+
+    /**
+     * @return  a new width x height image of zeros with this image's storage
+     */
+    public PatternImage newImage(int width, int height) {
+        return create(width, height, getPixelType());
+    }
+
+    /**
+     * Copy all of src into this image with its top left corner at (x, y)
+     */
+    public void copyFrom(PatternImage src, int x, int y) {
+        checkRegion(x, y, src.getWidth(), src.getHeight());
+        int[] row = new int[src.getWidth()];
+        for(int r=0; r<src.getHeight(); r++) {
+            setPixels(x, y + r, row.length, 1, src.getRow(r, row));
+        }
+    }
+
+    /**
+     * @return  true if there are no gaps between rows
+     */
+    public boolean isContiguous() {
+        return stride == width || height <= 1;
+    }
+
+    /**
+     * Copy row y into dest, allocating dest if null
+     *
+     * @return  dest
+     */
+    public int[] getRow(int y, int[] dest) {
+        if(dest == null) {
+            dest = new int[width];
+        }
+        getPixels(0, y, width, 1, dest);
+        return dest;
+    }
+
+    /**
+     * Copy width values of src into row y
+     */
+    public void setRow(int y, int[] src) {
+        setPixels(0, y, width, 1, src);
+    }
+
+    /**
+     * @return  a view of row y, sharing this image's data
+     */
+    public PatternImage row(int y) {
+        return region(0, y, width, 1);
+    }
+
+    /**
+     * @return  {min, max} of the pixel values, or null if the image is empty
+     */
+    public int[] getMinMax() {
+        if(width == 0 || height == 0) {
+            return null;
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int[] row = new int[width];
+        for(int y=0; y<height; y++) {
+            getRow(y, row);
+            for(int v : row) {
+                if(v < min) {
+                    min = v;
+                }
+                if(v > max) {
+                    max = v;
+                }
+            }
+        }
+        return new int[] { min, max };
+    }
+
+    protected void checkRegion(int x, int y, int w, int h) {
+        if(x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IndexOutOfBoundsException("region " + w + "x" + h + " at (" + x + ", "
+                    + y + ") outside " + width + "x" + height + " image");
+        }
+    }
+
+    protected static int checkedSize(int width, int height) {
+        long n = (long) width * height;
+        if(width < 0 || height < 0 || n > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("bad image size " + width + "x" + height);
+        }
+        return (int) n;
+    }
+}
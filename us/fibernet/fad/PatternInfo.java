@@ -0,0 +1,95 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+/**
+ * Metadata of a pattern file, as read from its header alone by
+ * PatternReader.probe: image dimensions, pixel type and, for PLR files,
+ * the header parameters.
+ */
+public final class PatternInfo {
+
+    private final String fileName;
+    private final String format;               // "TIF", "PLR", "CBF" or "DAT"
+    private final int width;                   // of the image readPattern returns
+    private final int height;
+    private final PatternReader.PixelType pixelType;  // null if not a plain type
+    private final int pages;
+    private final double[] plrHeader;          // PLR header in DataPlr.headerFormat order
+
+    PatternInfo(String fileName, String format, int width, int height,
+                PatternReader.PixelType pixelType, int pages, double[] plrHeader) {
+        this.fileName = fileName;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.pixelType = pixelType;
+        this.pages = pages;
+        this.plrHeader = plrHeader;
+    }
+
+    public String getFileName()                    { return fileName;  }
+    public String getFormat()                      { return format;    }
+    public int getWidth()                          { return width;     }
+    public int getHeight()                         { return height;    }
+    public PatternReader.PixelType getPixelType()  { return pixelType; }
+    public int getPages()                          { return pages;     }
+    public boolean isPlr()                         { return plrHeader != null; }
+
+    // PLR header parameters, 0 for other formats
+    public int IFV()          { return (int) plr(0);  }
+    public int NULB()         { return (int) plr(1);  }
+    public double RMIN()      { return plr(2);        }
+    public int NR()           { return (int) plr(3);  }
+    public double WR()        { return plr(4);        }
+    public double DR()        { return plr(5);        }
+    public double XW()        { return plr(6);        }
+    public double THMIN()     { return plr(7);        }
+    public double DTHET()     { return plr(8);        }
+    public int NTHET()        { return (int) plr(9);  }
+    public double SFD()       { return plr(12);       }
+    public double REPEAT()    { return plr(21);       }
+
+    private double plr(int i) {
+        return plrHeader == null ? 0 : plrHeader[i];
+    }
+
+    public String toString() {
+        String s = fileName + ": " + format + " " + width + "x" + height
+                 + (pixelType == null ? "" : " " + pixelType)
+                 + (pages > 1 ? " " + pages + " pages" : "");
+        if(isPlr()) {
+            s += ", IFV=" + IFV() + ", NULB=" + NULB() + ", RMIN=" + RMIN() + ", NR=" + NR()
+               + ", WR=" + WR() + ", DR=" + DR() + ", XW=" + XW() + ", THMIN=" + THMIN()
+               + ", DTHET=" + DTHET() + ", NTHET=" + NTHET() + ", SFD=" + SFD()
+               + ", REPEAT=" + REPEAT();
+        }
+        return s;
+    }
+}
@@ -28,21 +28,38 @@
 
 package us.fibernet.fad;
 
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 
+import com.sun.media.jai.codec.ByteArraySeekableStream;
 import com.sun.media.jai.codec.SeekableStream;
 import com.sun.media.jai.codec.FileSeekableStream;
 import com.sun.media.jai.codec.TIFFDecodeParam;
 import com.sun.media.jai.codec.ImageDecoder;
 import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.TIFFDirectory;
+import com.sun.media.jai.codec.TIFFField;
 
 /**
  * A utility class for reading pattern images in various formats.
@@ -51,11 +68,35 @@ import com.sun.media.jai.codec.ImageCodec;
  * TIF: ref
  * PLR: ref
  * DAT: ref
+ * CBF: imgCIF/CBF with byte-offset compression, as written by pixel-array detectors
  *
+ * Each may also be compressed with gzip, bzip2 or xz (e.g., x.plr.gz), in
+ * which case it is decompressed on the fly while being read.
+ *
+ * The reader keeps no state: all methods may be called from many threads at
+ * once, and readPatterns loads a batch of files concurrently.
  */
 public final class PatternReader {
 
-    private static int[][] image;
+    /**
+     * Pixel types of a raw DAT image, with their size in bytes
+     */
+    public enum PixelType {
+        BYTE(1), UBYTE(1), SHORT(2), USHORT(2), INT(4), FLOAT(4);
+
+        private final int size;
+
+        PixelType(int size) {
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    // decompressed bytes probe reads of a compressed PLR or CBF: its header
+    private static final int PROBE_BYTES = 1 << 16;
 
     private PatternReader() {
     }
@@ -63,30 +104,82 @@ public final class PatternReader {
     /**
      * Parse the pattern file extension and call accordingly a read method
      * Read pattern files that come with attributes not stored in itself
+     *
+     * DAT: args = {fname, width, height [, pixelType [, headerOffset [, endian]]]}
+     *      pixelType defaults to SHORT, headerOffset to 0 and endian to "little"
+     *
+     * Results are kept in the shared PatternCache and must not be modified.
+     */
+    public static PatternImage readPattern(String[] args) {
+        return readPattern(PatternCache.keyOf(args), args);
+    }
+
+    /*
+     * readPattern with the PatternCache key of args already computed
+     */
+    static PatternImage readPattern(String key, String[] args) {
+
+        PatternImage image = PatternCache.get(key);
+        if(image == null) {
+            image = decodePattern(args, PatternImage.HEAP);
+            PatternCache.put(key, image);
+        }
+
+        return image;
+    }
+
+    /**
+     * As readPattern(args), but decode into images from alloc, e.g.,
+     * DirectPatternImage.ALLOCATOR. Unless alloc is PatternImage.HEAP, the
+     * result bypasses PatternCache and belongs to the caller, who closes it
+     * when it is off the heap.
+     */
+    public static PatternImage readPattern(String[] args, PatternImage.Allocator alloc) {
+        return alloc == PatternImage.HEAP ? readPattern(args) : decodePattern(args, alloc);
+    }
+
+    /*
+     * Dispatch on the file extension to the read method, bypassing PatternCache
      */
-    public static int[][] readPattern(String[] args) {
+    private static PatternImage decodePattern(String[] args, PatternImage.Allocator alloc) {
 
         if(args == null || args.length < 1) {
             return null;
         }
 
         String fname = args[0];
+        String lname = PatternStreams.uncompressedName(fname).toLowerCase();
 
         if(args.length == 1) {
-            if (fname.toLowerCase().endsWith("tif")) {
-                return readTif(fname);
+            if (lname.endsWith("tif")) {
+                return readTif(fname, false, alloc);
             }
-            else if (fname.toLowerCase().endsWith("plr")) {
-                return readPlr(fname);
+            else if (lname.endsWith("plr")) {
+                return readPlr(fname, alloc);
+            }
+            else if (lname.endsWith("cbf")) {
+                return readCbf(fname, alloc);
             }
         }
         else {
-            if (fname.toLowerCase().endsWith("dat")) {
+            if (lname.endsWith("dat")) {
                 int w = 0, h = 0;
                 try {
                     w = Integer.parseInt(args[1]);
                     h = Integer.parseInt(args[2]);
-                    return readDat(fname, w, h);
+                    PixelType type = PixelType.SHORT;
+                    long offset = 0;
+                    ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+                    if(args.length > 3) {
+                        type = PixelType.valueOf(args[3].toUpperCase());
+                    }
+                    if(args.length > 4) {
+                        offset = Long.parseLong(args[4]);
+                    }
+                    if(args.length > 5 && args[5].toLowerCase().startsWith("b")) {
+                        order = ByteOrder.BIG_ENDIAN;
+                    }
+                    return readDat(fname, w, h, type, offset, order, alloc);
                 } catch (Exception e) {
                     e.printStackTrace();
                     System.out.println("dat image width and height must be specified");
@@ -97,27 +190,258 @@ public final class PatternReader {
         return null;
     }
 
+    /**
+     * Read the metadata of a pattern file without decoding its pixels: only
+     * the TIFF directory, the PLR header lines or, for DAT, the file size
+     * are read. Arguments are as for readPattern.
+     *
+     * A compressed PLR or CBF is decompressed only as far as its header. A
+     * compressed TIFF is decompressed whole, as its directory may be at the
+     * end; a compressed DAT is not checked against the image size.
+     *
+     * @return  the pattern's metadata, or null if the file cannot be probed
+     */
+    public static PatternInfo probe(String[] args) {
+
+        if(args == null || args.length < 1) {
+            return null;
+        }
+
+        String fname = args[0];
+        String lname = PatternStreams.uncompressedName(fname).toLowerCase();
+        boolean compressed = PatternStreams.isCompressed(fname);
+
+        try {
+            if (lname.endsWith("tif")) {
+                return probeTif(fname);
+            }
+            else if (lname.endsWith("plr")) {
+                return probePlr(fname);
+            }
+            else if (lname.endsWith("cbf")) {
+                ByteBuffer buf = compressed
+                        ? ByteBuffer.wrap(PatternStreams.readPrefix(fname, PROBE_BYTES))
+                        : mapFile(fname);
+                int[] dims = cbfDimensions(buf, findCbfData(buf, fname));
+                return new PatternInfo(fname, "CBF", dims[0], dims[1], PixelType.INT, 1, null);
+            }
+            else if (lname.endsWith("dat") && args.length > 2) {
+                int w = Integer.parseInt(args[1]);
+                int h = Integer.parseInt(args[2]);
+                PixelType type = args.length > 3 ? PixelType.valueOf(args[3].toUpperCase())
+                                                 : PixelType.SHORT;
+                long offset = args.length > 4 ? Long.parseLong(args[4]) : 0;
+                if (!compressed && offset + (long) w * h * type.size() > new File(fname).length()) {
+                    throw new IOException(fname + " is too short for a " + w + "x" + h
+                            + " " + type + " image at offset " + offset);
+                }
+                return new PatternInfo(fname, "DAT", w, h, type, 1, null);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     /*
-     * Read a raw data image and extract image data into a 2D array
+     * Read dimensions and sample format from the first TIFF directory
      */
-    private static int[][] readDat(String fname, int W, int H) {
+    private static PatternInfo probeTif(String fname) throws IOException {
 
-        EndianCorrectInputStream input = null;
-        image = null;
+        SeekableStream s = PatternStreams.isCompressed(fname)
+                ? new ByteArraySeekableStream(PatternStreams.readAll(fname))
+                : new FileSeekableStream(fname);
+        try {
+            TIFFDirectory dir = new TIFFDirectory(s, 0);
+            int w = (int) dir.getFieldAsLong(256);        // ImageWidth
+            int h = (int) dir.getFieldAsLong(257);        // ImageLength
+            int bits = tiffInt(dir, 258, 1);              // BitsPerSample
+            int format = tiffInt(dir, 339, 1);            // SampleFormat
+            int pages = TIFFDirectory.getNumDirectories(s);
+
+            PixelType type = null;
+            if (format == 3 && bits == 32) {
+                type = PixelType.FLOAT;
+            }
+            else if (bits == 8) {
+                type = format == 2 ? PixelType.BYTE : PixelType.UBYTE;
+            }
+            else if (bits == 16) {
+                type = format == 2 ? PixelType.SHORT : PixelType.USHORT;
+            }
+            else if (bits == 32) {
+                type = PixelType.INT;
+            }
+            return new PatternInfo(fname, "TIF", w, h, type, pages, null);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+    private static int tiffInt(TIFFDirectory dir, int tag, int dflt) {
+        TIFFField f = dir.isTagPresent(tag) ? dir.getField(tag) : null;
+        return f == null ? dflt : (int) f.getAsLong(0);
+    }
+
+    /*
+     * Parse the PLR header lines only. The file is mapped, so only the
+     * pages holding the header are read; a compressed file is decompressed
+     * as far as PROBE_BYTES.
+     */
+    private static PatternInfo probePlr(String fname) throws IOException {
+
+        ByteBuffer buf = PatternStreams.isCompressed(fname)
+                ? ByteBuffer.wrap(PatternStreams.readPrefix(fname, PROBE_BYTES))
+                : mapFile(fname);
+        DataPlr dp = new DataPlr();
+        if (dp.scanHeader(buf) < 0) {
+            throw new IOException(fname + ": invalid PLR header");
+        }
+        int size = dp.NR + (int) Math.round(dp.RMIN);
+        return new PatternInfo(fname, "PLR", size, size, null, 1, dp.getHeader());
+    }
+
+    /**
+     * Read self-describing pattern files (TIF, PLR, CBF) concurrently on executor,
+     * with at most one file per available processor being read at a time.
+     *
+     * @return  images in the order of paths, null for a file that could not be read
+     * @throws InterruptedException  if interrupted while waiting for a file
+     */
+    public static List<PatternImage> readPatterns(List<Path> paths, Executor executor)
+            throws InterruptedException {
+        return readPatterns(paths, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Read self-describing pattern files (TIF, PLR, CBF) concurrently on executor.
+     * No more than maxInFlight files are submitted at a time, so a large
+     * batch neither floods the executor's queue nor holds more than
+     * maxInFlight images in decoding at once.
+     *
+     * @return  images in the order of paths, null for a file that could not be read
+     * @throws InterruptedException  if interrupted while waiting for a file
+     */
+    public static List<PatternImage> readPatterns(final List<Path> paths, Executor executor,
+                                                  int maxInFlight) throws InterruptedException {
+
+        final PatternImage[] images = new PatternImage[paths.size()];
+        CompletionService<Integer> cs = new ExecutorCompletionService<Integer>(executor);
+        int submitted = 0, done = 0;
+
+        while(done < paths.size()) {
+            while(submitted < paths.size() && submitted - done < Math.max(1, maxInFlight)) {
+                final int i = submitted++;
+                cs.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        images[i] = readPattern(new String[] { paths.get(i).toString() });
+                        return i;
+                    }
+                });
+            }
+            try {
+                cs.take().get();
+            }
+            catch(ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+            ++done;
+        }
+
+        return Arrays.asList(images);
+    }
+
+    /**
+     * Read a raw data image and extract image data into a PatternImage.
+     *
+     * The pixel block is memory mapped and decoded a row at a time through a
+     * typed view buffer, so byte swapping is done by the buffer in bulk.
+     *
+     * @param fname  raw image file
+     * @param W  image width in pixels
+     * @param H  image height in pixels
+     * @param type  pixel type
+     * @param offset  number of header bytes to skip
+     * @param order  byte order of the pixel data
+     * @return  image data, or null on error
+     */
+    public static PatternImage readDat(String fname, int W, int H, PixelType type,
+                                       long offset, ByteOrder order) {
+        return readDat(fname, W, H, type, offset, order, PatternImage.HEAP);
+    }
+
+    private static PatternImage readDat(String fname, int W, int H, PixelType type,
+                                        long offset, ByteOrder order,
+                                        PatternImage.Allocator alloc) {
+
+        if (PatternStreams.isCompressed(fname)) {
+            return readDatStream(fname, W, H, type, offset, order, alloc);
+        }
+
+        FileInputStream input = null;
+        PatternImage image = null;
 
         try {
+            input = new FileInputStream(fname);
+            FileChannel fc = input.getChannel();
+
+            long size = (long) W * H * type.size();
+            if (offset < 0 || offset + size > fc.size()) {
+                throw new IOException(fname + " is too short for a " + W + "x" + H
+                        + " " + type + " image at offset " + offset);
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(fname + ": image too large to map");
+            }
+
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            buf.order(order);
+            image = alloc.allocate(W, H, storageType(type));
+            decodeDat(buf, type, image);
+        } catch (Exception e) {
+            e.printStackTrace();
+            image = null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
-            image = new int[H][W];
-            input = new EndianCorrectInputStream(new FileInputStream(fname),
-                    false);
+        return image;
+    }
 
-            for (int i = 0; i < H; i++) {
-                for (int j = 0; j < W; j++) {
-                    image[i][j] = (int) (input.readShortCorrect());
+    /*
+     * Read a compressed raw data image, decoding rows with the bulk reads of
+     * EndianCorrectInputStream as the data is decompressed
+     */
+    private static PatternImage readDatStream(String fname, int W, int H, PixelType type,
+                                              long offset, ByteOrder order,
+                                              PatternImage.Allocator alloc) {
+
+        EndianCorrectInputStream input = null;
+        PatternImage image = null;
+
+        try {
+            input = new EndianCorrectInputStream(PatternStreams.open(fname),
+                    order == ByteOrder.BIG_ENDIAN);
+            for (long skipped = 0; skipped < offset; ) {
+                int n = input.skipBytes((int) Math.min(offset - skipped, Integer.MAX_VALUE));
+                if (n <= 0) {
+                    throw new IOException(fname + " ends in its header");
                 }
+                skipped += n;
             }
+            image = alloc.allocate(W, H, storageType(type));
+            decodeDat(input, type, image);
         } catch (Exception e) {
             e.printStackTrace();
+            image = null;
         } finally {
             if (input != null) {
                 try {
@@ -132,50 +456,508 @@ public final class PatternReader {
     }
 
     /*
-     * Read a TIFF image and extract image data into a 2D array
+     * Storage of a DAT image of pixel type type: unsigned 8 and 16 bit pixels
+     * are kept in 16 bits, all others in 32
+     */
+    private static PixelType storageType(PixelType type) {
+        return (type == PixelType.UBYTE || type == PixelType.USHORT) ? PixelType.USHORT
+                                                                      : PixelType.INT;
+    }
+
+    /*
+     * Bulk decode the pixels of input, row by row, into dest, which has the
+     * storage type storageType(type)
      */
-    private static int[][] readTif(String fname) {
+    private static void decodeDat(EndianCorrectInputStream input, PixelType type,
+                                  PatternImage dest) throws IOException {
+
+        int W = dest.getWidth();
+        int H = dest.getHeight();
+
+        if (!isHeap(dest)) {
+            PatternImage strip = heapStrip(dest);
+            for (int y = 0; y < H; y += strip.getHeight()) {
+                PatternImage s = strip.region(0, 0, W, Math.min(strip.getHeight(), H - y));
+                decodeDat(input, type, s);
+                dest.copyFrom(s, 0, y);
+            }
+            return;
+        }
 
-        image = null;
+        switch (type) {
+        case BYTE:
+        case UBYTE: {
+            byte[] row = new byte[W];
+            for (int y = 0; y < H; y++) {
+                input.readFully(row);
+                widenBytes(row, type, dest, y);
+            }
+            break;
+        }
+        case SHORT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            short[] row = new short[W];
+            for (int y = 0; y < H; y++) {
+                input.readShorts(row, 0, W);
+                for (int j = 0, i = dest.index(0, y); j < W; j++, i++) {
+                    d[i] = row[j];
+                }
+            }
+            break;
+        }
+        case USHORT: {
+            char[] d = ((UShortPatternImage) dest).getData();
+            for (int y = 0; y < H; y++) {
+                input.readChars(d, dest.index(0, y), W);
+            }
+            break;
+        }
+        case INT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            for (int y = 0; y < H; y++) {
+                input.readInts(d, dest.index(0, y), W);
+            }
+            break;
+        }
+        case FLOAT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            float[] row = new float[W];
+            for (int y = 0; y < H; y++) {
+                input.readFloats(row, 0, W);
+                for (int j = 0, i = dest.index(0, y); j < W; j++, i++) {
+                    d[i] = Math.round(row[j]);
+                }
+            }
+            break;
+        }
+        }
+    }
+
+    /*
+     * Bulk decode the pixels in buf, row by row, into dest, which has the
+     * storage type storageType(type). 16-bit unsigned pixels are copied
+     * straight into the image's char array. buf is left positioned after the
+     * pixels decoded.
+     */
+    private static void decodeDat(MappedByteBuffer buf, PixelType type, PatternImage dest) {
+
+        int W = dest.getWidth();
+        int H = dest.getHeight();
+        int start = buf.position();
+
+        if (!isHeap(dest)) {
+            PatternImage strip = heapStrip(dest);
+            for (int y = 0; y < H; y += strip.getHeight()) {
+                PatternImage s = strip.region(0, 0, W, Math.min(strip.getHeight(), H - y));
+                decodeDat(buf, type, s);
+                dest.copyFrom(s, 0, y);
+            }
+            return;
+        }
+
+        switch (type) {
+        case BYTE:
+        case UBYTE: {
+            byte[] row = new byte[W];
+            for (int y = 0; y < H; y++) {
+                buf.get(row);
+                widenBytes(row, type, dest, y);
+            }
+            break;
+        }
+        case SHORT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            ShortBuffer sb = buf.asShortBuffer();
+            short[] row = new short[W];
+            for (int y = 0; y < H; y++) {
+                sb.get(row);
+                for (int j = 0, i = dest.index(0, y); j < W; j++, i++) {
+                    d[i] = row[j];
+                }
+            }
+            break;
+        }
+        case USHORT: {
+            char[] d = ((UShortPatternImage) dest).getData();
+            CharBuffer cb = buf.asCharBuffer();
+            for (int y = 0; y < H; y++) {
+                cb.get(d, dest.index(0, y), W);
+            }
+            break;
+        }
+        case INT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            IntBuffer ib = buf.asIntBuffer();
+            for (int y = 0; y < H; y++) {
+                ib.get(d, dest.index(0, y), W);
+            }
+            break;
+        }
+        case FLOAT: {
+            int[] d = ((IntPatternImage) dest).getData();
+            FloatBuffer fb = buf.asFloatBuffer();
+            float[] row = new float[W];
+            for (int y = 0; y < H; y++) {
+                fb.get(row);
+                for (int j = 0, i = dest.index(0, y); j < W; j++, i++) {
+                    d[i] = Math.round(row[j]);
+                }
+            }
+            break;
+        }
+        }
+
+        buf.position(start + W * H * type.size());
+    }
+
+    private static boolean isHeap(PatternImage image) {
+        return image instanceof IntPatternImage || image instanceof UShortPatternImage;
+    }
+
+    /*
+     * a heap image of about 1MB of whole rows with the storage of image, to
+     * decode through into other storage
+     */
+    private static PatternImage heapStrip(PatternImage image) {
+        int W = image.getWidth();
+        int rows = Math.max(1, Math.min(image.getHeight(), (1 << 18) / Math.max(1, W)));
+        return PatternImage.create(W, rows, image.getPixelType());
+    }
+
+    /*
+     * image itself if alloc is HEAP, else a copy of it from alloc
+     */
+    private static PatternImage reallocate(PatternImage image, PatternImage.Allocator alloc) {
+        if (image == null || alloc == PatternImage.HEAP) {
+            return image;
+        }
+        PatternImage copy = alloc.allocate(image.getWidth(), image.getHeight(),
+                                           image.getPixelType());
+        copy.copyFrom(image, 0, 0);
+        return copy;
+    }
+
+    /*
+     * Store a row of BYTE (into 32 bits) or UBYTE (into 16 bits) pixels as row y of dest
+     */
+    private static void widenBytes(byte[] row, PixelType type, PatternImage dest, int y) {
+        int i = dest.index(0, y);
+        if (type == PixelType.UBYTE) {
+            char[] d = ((UShortPatternImage) dest).getData();
+            for (int j = 0; j < row.length; j++, i++) {
+                d[i] = (char) (row[j] & 0xff);
+            }
+        }
+        else {
+            int[] d = ((IntPatternImage) dest).getData();
+            for (int j = 0; j < row.length; j++, i++) {
+                d[i] = row[j];
+            }
+        }
+    }
+
+    /**
+     * Read a TIFF image and extract image data into a PatternImage
+     *
+     * @param parallel  if true decode the image's tiles or strips in parallel, each
+     *                  piece of them with a decoder of its own
+     * @return  image data, or null on error
+     */
+    public static PatternImage readTif(String fname, boolean parallel) {
+        return readTif(fname, parallel, PatternImage.HEAP);
+    }
+
+    private static PatternImage readTif(final String fname, boolean parallel,
+                                        PatternImage.Allocator alloc) {
+
+        PatternImage image = PatternSidecar.loadImage(new File(fname));
+        if(image != null) {
+            return reallocate(image, alloc);
+        }
 
         try {
-            SeekableStream s = new FileSeekableStream(fname);
-            TIFFDecodeParam param = null;
-            ImageDecoder dec = ImageCodec.createImageDecoder("tiff", s, param);
-            RenderedImage op = dec.decodeAsRenderedImage(0);
-            Raster raster = op.getData();
-            image = new int[op.getHeight()][op.getWidth()];
-            // System.out.println(op.getHeight() + " " + op.getWidth());
-
-            int[] pixelColor = new int[4];
-            for (int x = 0; x < op.getWidth(); x++) {
-                for (int y = 0; y < op.getHeight(); y++) {
-                    raster.getPixel(x, y, pixelColor);
-                    image[y][x] = pixelColor[0];
+            final byte[] bytes = PatternStreams.isCompressed(fname) ? PatternStreams.readAll(fname)
+                                                                    : null;
+            SeekableStream s = openTif(fname, bytes);
+            try {
+                RenderedImage op = decodeTif(s);
+                final PatternImage dest = allocateFor(op, alloc);
+                int ntiles = op.getNumXTiles() * op.getNumYTiles();
+
+                if(parallel && ntiles > 1) {
+                    // a JAI decoder decodes one tile at a time, so each piece
+                    // of the image gets a decoder and stream of its own
+                    ParallelUtil.forRange(0, ntiles, ParallelUtil.grainFor(ntiles),
+                                          new ParallelUtil.RangeTask() {
+                        public void run(int from, int to) {
+                            try {
+                                SeekableStream ws = openTif(fname, bytes);
+                                try {
+                                    copyTiles(decodeTif(ws), dest, from, to);
+                                }
+                                finally {
+                                    ws.close();
+                                }
+                            }
+                            catch(IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                }
+                else {
+                    copyTiles(op, dest, 0, ntiles);
                 }
+                image = dest;
             }
+            finally {
+                s.close();
+            }
+            PatternSidecar.storeImage(new File(fname), image);
         } catch (Exception e) {
             e.printStackTrace();
+            image = null;
         }
 
         return image;
     }
 
+    // a stream over the TIFF file, or over bytes if it was decompressed
+    private static SeekableStream openTif(String fname, byte[] bytes) throws IOException {
+        return bytes != null ? new ByteArraySeekableStream(bytes) : new FileSeekableStream(fname);
+    }
+
+    private static RenderedImage decodeTif(SeekableStream s) throws IOException {
+        TIFFDecodeParam param = null;
+        ImageDecoder dec = ImageCodec.createImageDecoder("tiff", s, param);
+        return dec.decodeAsRenderedImage(0);
+    }
+
+    /**
+     * Copy band 0 of a decoded image into a PatternImage, with 16-bit storage
+     * if the samples are 8 or 16 bit unsigned. The image is walked a tile (or
+     * strip) at a time; each tile is fetched with one getSamples call and
+     * stored into the destination with one setPixels call.
+     *
+     * @param alloc  allocates the destination
+     */
+    static PatternImage renderedToImage(RenderedImage op, PatternImage.Allocator alloc) {
+        PatternImage dest = allocateFor(op, alloc);
+        copyTiles(op, dest, 0, op.getNumXTiles() * op.getNumYTiles());
+        return dest;
+    }
+
+    private static PatternImage allocateFor(RenderedImage op, PatternImage.Allocator alloc) {
+        int dataType = op.getSampleModel().getDataType();
+        return alloc.allocate(op.getWidth(), op.getHeight(),
+                (dataType == DataBuffer.TYPE_BYTE || dataType == DataBuffer.TYPE_USHORT)
+                ? PixelType.USHORT : PixelType.INT);
+    }
+
+    // copy tiles [from, to) of op, numbered row after row, into dest
+    private static void copyTiles(RenderedImage op, PatternImage dest, int from, int to) {
+
+        Rectangle bounds = new Rectangle(op.getMinX(), op.getMinY(), op.getWidth(), op.getHeight());
+        int ntx = op.getNumXTiles();
+        int[] tileBuf = null;
+
+        for(int t=from; t<to; t++) {
+            Raster tile = op.getTile(op.getMinTileX() + t % ntx, op.getMinTileY() + t / ntx);
+            Rectangle r = tile.getBounds().intersection(bounds);
+            if(r.isEmpty()) {
+                continue;
+            }
+            if(tileBuf == null || tileBuf.length < r.width * r.height) {
+                tileBuf = new int[r.width * r.height];
+            }
+            tile.getSamples(r.x, r.y, r.width, r.height, 0, tileBuf);
+            dest.setPixels(r.x - bounds.x, r.y - bounds.y, r.width, r.height, tileBuf);
+        }
+    }
+
+    /**
+     * Read a CBF image compressed with the byte-offset algorithm and decode it
+     * into a PatternImage. CBF files of several frames can be decoded in parallel
+     * with readPatterns.
+     *
+     * @return  image data, or null on error
+     */
+    public static PatternImage readCbf(String fname) {
+        return readCbf(fname, PatternImage.HEAP);
+    }
+
+    private static PatternImage readCbf(String fname, PatternImage.Allocator alloc) {
+
+        try {
+            ByteBuffer buf = PatternStreams.isCompressed(fname)
+                    ? ByteBuffer.wrap(PatternStreams.readAll(fname))
+                    : mapFile(fname);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            int start = findCbfData(buf, fname);
+            String header = PlrScanner.toString(buf, Math.max(0, start - 4096), start);
+            String conversions = cbfField(header, "conversions=");
+            if (conversions == null || !conversions.contains("BYTE_OFFSET")) {
+                throw new IOException(fname + ": unsupported CBF compression " + conversions);
+            }
+
+            int[] dims = cbfDimensions(buf, start);
+            PatternImage image = alloc.allocate(dims[0], dims[1], PixelType.INT);
+            decodeByteOffset(buf, start, image);
+            return image;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
     /*
-     * Read a PLR image and extract image data into a 2D array
+     * Undo byte-offset compression: each pixel is the previous one plus a
+     * delta stored in 1 byte, or after an escape in 2, 4 or 8 bytes.
      */
-    public static int[][] readPlr(String fname) {
+    private static void decodeByteOffset(ByteBuffer buf, int pos, PatternImage dest)
+            throws IOException {
+
+        long val = 0;
+        int end = buf.limit();
+        int[] row = new int[dest.getWidth()];
 
         try {
-            BufferedReader br = new BufferedReader(new FileReader(fname));
-            DataPlr dp = new DataPlr();
-            dp.parseData(br);
-            br.close();
-            return dp.getImageData();
+            for (int y = 0; y < dest.getHeight(); y++) {
+                for (int i = 0; i < row.length; i++) {
+                    byte d8 = buf.get(pos++);
+                    if (d8 != Byte.MIN_VALUE) {
+                        val += d8;
+                    }
+                    else {
+                        short d16 = buf.getShort(pos);
+                        pos += 2;
+                        if (d16 != Short.MIN_VALUE) {
+                            val += d16;
+                        }
+                        else {
+                            int d32 = buf.getInt(pos);
+                            pos += 4;
+                            if (d32 != Integer.MIN_VALUE) {
+                                val += d32;
+                            }
+                            else {
+                                val += buf.getLong(pos);
+                                pos += 8;
+                            }
+                        }
+                    }
+                    row[i] = (int) val;
+                }
+                dest.setRow(y, row);
+            }
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("CBF data ends at byte " + end + " before the last pixel");
+        }
+    }
+
+    /*
+     * @return  offset of the binary data, just after the 0C 1A 04 D5 marker
+     */
+    private static int findCbfData(ByteBuffer buf, String fname) throws IOException {
+        int end = buf.limit() - 3;
+        for (int i = 0; i < end; i++) {
+            if (buf.get(i) == 0x0C && buf.get(i + 1) == 0x1A
+                    && buf.get(i + 2) == 0x04 && buf.get(i + 3) == (byte) 0xD5) {
+                return i + 4;
+            }
+        }
+        throw new IOException(fname + ": no CBF binary section");
+    }
+
+    /*
+     * @return  {width, height} from the MIME header before the binary data
+     */
+    private static int[] cbfDimensions(ByteBuffer buf, int start) throws IOException {
+        String header = PlrScanner.toString(buf, Math.max(0, start - 4096), start);
+        String w = cbfField(header, "X-Binary-Size-Fastest-Dimension:");
+        String h = cbfField(header, "X-Binary-Size-Second-Dimension:");
+        if (w == null || h == null) {
+            throw new IOException("CBF header lacks image dimensions");
+        }
+        return new int[] { Integer.parseInt(w), Integer.parseInt(h) };
+    }
+
+    /*
+     * @return  the value following the last occurrence of name on its line, unquoted
+     */
+    private static String cbfField(String header, String name) {
+        int i = header.lastIndexOf(name);
+        if (i < 0) {
+            return null;
+        }
+        int from = i + name.length();
+        int to = from;
+        while (to < header.length() && header.charAt(to) != '\n' && header.charAt(to) != '\r'
+                && header.charAt(to) != ';') {
+            ++to;
+        }
+        return header.substring(from, to).replace("\"", "").trim();
+    }
+
+    private static ByteBuffer mapFile(String fname) throws IOException {
+        FileInputStream input = new FileInputStream(fname);
+        try {
+            FileChannel fc = input.getChannel();
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /*
+     * Read a PLR image and extract image data into a PatternImage
+     */
+    public static PatternImage readPlr(String fname) {
+        return readPlr(fname, PatternImage.HEAP);
+    }
+
+    private static PatternImage readPlr(String fname, PatternImage.Allocator alloc) {
+
+        DataPlr dp = PatternSidecar.loadPlr(new File(fname));
+        if(dp != null) {
+            return reallocate(dp.getImageData(), alloc);
+        }
+
+        FileInputStream input = null;
+
+        try {
+            ByteBuffer buf;
+            if (PatternStreams.isCompressed(fname)) {
+                buf = ByteBuffer.wrap(PatternStreams.readAll(fname));
+            }
+            else {
+                input = new FileInputStream(fname);
+                FileChannel fc = input.getChannel();
+                buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            }
+            dp = new DataPlr();
+            if(dp.parseDataParallel(buf)) {
+                PatternSidecar.storePlr(new File(fname), dp);
+            }
+            return reallocate(dp.getImageData(), alloc);
         }
         catch(Exception e) {
             e.printStackTrace();
         }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
 
         return null;
     }
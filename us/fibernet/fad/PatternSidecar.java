@@ -0,0 +1,364 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A binary cache of decoded patterns kept beside the source file (as
+ * source + ".fadc"), or in the directory named by the system property
+ * fad.cache.dir. A cache file is keyed by the source's canonical path, size
+ * and modification time; it is ignored and rewritten once the source changes.
+ *
+ * Layout, little endian:
+ * <pre>
+ *  "FADC", version, kind (0 image, 1 PLR polar data)
+ *  source size (long), source mtime (long), path length, path (UTF-8)
+ *  number of header values, header values (double, PLR only)
+ *  height, width, bytes per pixel, padding to 8 bytes, then
+ *    image: height * width pixels (4 bytes int or 2 bytes unsigned short)
+ *    PLR:   height * width float intensities, height * width short bin
+ *           counts (6 bytes per cell)
+ * </pre>
+ */
+final class PatternSidecar {
+
+    static final int KIND_IMAGE = 0;
+    static final int KIND_PLR = 1;
+
+    private static final int MAGIC = 0x43444146;  // "FADC" read little endian
+    private static final int VERSION = 3;
+    private static final int PLR_CELL_BYTES = 6;
+    private static final String SUFFIX = ".fadc";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static volatile boolean enabled = !"off".equals(System.getProperty("fad.cache"));
+
+    private PatternSidecar() {
+    }
+
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * @return  the cached image of src, or null if there is no valid cache
+     */
+    static PatternImage loadImage(File src) {
+        return (PatternImage) load(src, KIND_IMAGE, null);
+    }
+
+    /**
+     * @return  a DataPlr restored from the cache of src, or null if there is
+     *          no valid cache
+     */
+    static DataPlr loadPlr(File src) {
+        DataPlr dp = new DataPlr();
+        return load(src, KIND_PLR, dp) != null ? dp : null;
+    }
+
+    static void storeImage(File src, PatternImage image) {
+        store(src, KIND_IMAGE, null, image, null);
+    }
+
+    static void storePlr(File src, DataPlr dp) {
+        if(dp.hasData()) {
+            store(src, KIND_PLR, dp.getHeader(), null, dp);
+        }
+    }
+
+    /*
+     * Map and validate the cache file of src. For KIND_PLR the header and
+     * data columns are set on dp, which is returned; for KIND_IMAGE the image
+     * is returned. Return null if there is no valid cache.
+     */
+    private static Object load(File src, int kind, DataPlr dp) {
+
+        if(!enabled) {
+            return null;
+        }
+
+        FileInputStream input = null;
+        try {
+            File cache = cacheFile(src);
+            if(!cache.isFile()) {
+                return null;
+            }
+
+            input = new FileInputStream(cache);
+            FileChannel fc = input.getChannel();
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            if(buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != kind
+                    || buf.getLong() != src.length() || buf.getLong() != src.lastModified()) {
+                return null;
+            }
+            byte[] path = new byte[buf.getInt()];
+            buf.get(path);
+            if(!new String(path, UTF8).equals(src.getCanonicalPath())) {
+                return null;
+            }
+
+            double[] header = new double[buf.getInt()];
+            for(int i=0; i<header.length; i++) {
+                header[i] = buf.getDouble();
+            }
+            int height = buf.getInt();
+            int width = buf.getInt();
+            int pixelBytes = buf.getInt();
+            buf.position(align(buf.position()));
+            if(buf.remaining() != (long) height * width * pixelBytes) {
+                return null;
+            }
+
+            if(kind == KIND_PLR) {
+                if(pixelBytes != PLR_CELL_BYTES || !dp.setHeader(header)
+                        || dp.NR != height || dp.NTHET != width) {
+                    return null;
+                }
+                int n = height * width;
+                float[] intensity = new float[n];
+                short[] binCount = new short[n];
+                buf.asFloatBuffer().get(intensity);
+                buf.position(buf.position() + 4 * n);
+                buf.asShortBuffer().get(binCount);
+                dp.intensity = intensity;
+                dp.binCount = binCount;
+                return dp;
+            }
+
+            if(pixelBytes != 2 && pixelBytes != 4) {
+                return null;
+            }
+            PatternImage grid;
+            if(pixelBytes == 2) {
+                UShortPatternImage u = new UShortPatternImage(width, height);
+                buf.asCharBuffer().get(u.getData());
+                grid = u;
+            }
+            else {
+                IntPatternImage i = new IntPatternImage(width, height);
+                buf.asIntBuffer().get(i.getData());
+                grid = i;
+            }
+            return grid;
+        }
+        catch(Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+        finally {
+            if(input != null) {
+                try {
+                    input.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /*
+     * Write the cache file of src through a temporary file, so that readers
+     * never see a partial cache. Failures only cost the cache. Either grid,
+     * for KIND_IMAGE, or dp, for KIND_PLR, is given.
+     */
+    private static void store(File src, int kind, double[] header, PatternImage grid,
+                              DataPlr dp) {
+
+        if(!enabled || (grid == null && dp == null) || (grid != null && grid.getHeight() == 0)) {
+            return;
+        }
+
+        File tmp = null;
+        FileOutputStream output = null;
+        try {
+            File cache = cacheFile(src);
+            File dir = cache.getAbsoluteFile().getParentFile();
+            if(dir == null || !dir.canWrite()) {
+                return;
+            }
+
+            byte[] path = src.getCanonicalPath().getBytes(UTF8);
+            int nheader = header == null ? 0 : header.length;
+            int height = dp != null ? dp.NR : grid.getHeight();
+            int width = dp != null ? dp.NTHET : grid.getWidth();
+            int pixelBytes = dp != null ? PLR_CELL_BYTES : grid.getPixelType().size();
+
+            ByteBuffer head = ByteBuffer.allocate(align(48 + path.length + 8 * nheader));
+            head.order(ByteOrder.LITTLE_ENDIAN);
+            head.putInt(MAGIC).putInt(VERSION).putInt(kind);
+            head.putLong(src.length()).putLong(src.lastModified());
+            head.putInt(path.length).put(path);
+            head.putInt(nheader);
+            for(int i=0; i<nheader; i++) {
+                head.putDouble(header[i]);
+            }
+            head.putInt(height).putInt(width).putInt(pixelBytes);
+            head.position(0);
+
+            tmp = File.createTempFile(cache.getName(), ".tmp", dir);
+            output = new FileOutputStream(tmp);
+            FileChannel fc = output.getChannel();
+            writeFully(fc, head);
+
+            ByteBuffer body = ByteBuffer.allocate(Math.max(width, 16 * 1024) * 4);
+            body.order(ByteOrder.LITTLE_ENDIAN);
+            if(dp != null) {
+                writeFloats(fc, body, dp.getIntensities());
+                writeShorts(fc, body, dp.getBinCounts());
+            }
+            else if(pixelBytes == 2) {
+                char[] data = grid instanceof UShortPatternImage
+                            ? ((UShortPatternImage) grid).getData() : null;
+                int[] row = data == null ? new int[width] : null;
+                CharBuffer cb = body.asCharBuffer();
+                for(int y=0; y<height; y++) {
+                    if(cb.remaining() < width) {
+                        flush(fc, body, cb.position() * 2);
+                        cb.clear();
+                    }
+                    if(data != null) {
+                        cb.put(data, grid.index(0, y), width);
+                    }
+                    else {
+                        for(int v : grid.getRow(y, row)) {
+                            cb.put((char) v);
+                        }
+                    }
+                }
+                flush(fc, body, cb.position() * 2);
+            }
+            else {
+                IntBuffer ib = body.asIntBuffer();
+                int[] row = new int[width];
+                for(int y=0; y<height; y++) {
+                    if(ib.remaining() < width) {
+                        flush(fc, body, ib.position() * 4);
+                        ib.clear();
+                    }
+                    ib.put(grid.getRow(y, row));
+                }
+                flush(fc, body, ib.position() * 4);
+            }
+            output.close();
+            output = null;
+
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        }
+        catch(Exception e) {
+            System.out.println("Could not write pattern cache for " + src + ": " + e);
+        }
+        finally {
+            if(output != null) {
+                try {
+                    output.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if(tmp != null && !tmp.delete()) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+
+    /*
+     * cache file of src: beside it, or in fad.cache.dir named by a hash of its path
+     */
+    private static File cacheFile(File src) throws IOException {
+        String dir = System.getProperty("fad.cache.dir");
+        if(dir == null || dir.length() == 0) {
+            return new File(src.getCanonicalPath() + SUFFIX);
+        }
+        String path = src.getCanonicalPath();
+        String name = src.getName() + "-" + Integer.toHexString(path.hashCode()) + SUFFIX;
+        return new File(dir, name);
+    }
+
+    private static void writeFloats(FileChannel fc, ByteBuffer body, float[] a)
+            throws IOException {
+        FloatBuffer fb = body.asFloatBuffer();
+        for(int k=0; k<a.length; ) {
+            int n = Math.min(fb.capacity(), a.length - k);
+            fb.clear();
+            fb.put(a, k, n);
+            flush(fc, body, n * 4);
+            k += n;
+        }
+    }
+
+    private static void writeShorts(FileChannel fc, ByteBuffer body, short[] a)
+            throws IOException {
+        ShortBuffer sb = body.asShortBuffer();
+        for(int k=0; k<a.length; ) {
+            int n = Math.min(sb.capacity(), a.length - k);
+            sb.clear();
+            sb.put(a, k, n);
+            flush(fc, body, n * 2);
+            k += n;
+        }
+    }
+
+    /*
+     * write the first nbytes of body, filled through a view buffer
+     */
+    private static void flush(FileChannel fc, ByteBuffer body, int nbytes) throws IOException {
+        body.position(0);
+        body.limit(nbytes);
+        writeFully(fc, body);
+        body.clear();
+    }
+
+    private static void writeFully(FileChannel fc, ByteBuffer b) throws IOException {
+        while(b.hasRemaining()) {
+            fc.write(b);
+        }
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens pattern files as streams, decompressing .gz, .bz2 and .xz files on
+ * the fly so that they can be parsed without a scratch copy on disk.
+ *
+ * Decompression runs on a separate thread that stays ahead of the parser by
+ * up to a few large chunks. gzip is inflated by java.util.zip, bzip2 and xz
+ * by the decoders in this package, so no external program is needed.
+ */
+final class PatternStreams {
+
+    private static final int CHUNK_SIZE = 1 << 20;  // read and pipeline buffer size
+    private static final int CHUNKS_AHEAD = 4;      // chunks decompressed ahead of the reader
+
+    private static final String[] SUFFIXES = { ".gz", ".bz2", ".xz" };
+
+    private PatternStreams() {
+    }
+
+    /**
+     * @return  true if fname has a compression suffix
+     */
+    static boolean isCompressed(String fname) {
+        return uncompressedName(fname).length() != fname.length();
+    }
+
+    /**
+     * @return  fname without its compression suffix, if any
+     */
+    static String uncompressedName(String fname) {
+        String lname = fname.toLowerCase();
+        for(String suffix : SUFFIXES) {
+            if(lname.endsWith(suffix)) {
+                return fname.substring(0, fname.length() - suffix.length());
+            }
+        }
+        return fname;
+    }
+
+    /**
+     * Open fname for reading, decompressed if it has a compression suffix
+     */
+    static InputStream open(String fname) throws IOException {
+
+        String lname = fname.toLowerCase();
+
+        if(lname.endsWith(".gz")) {
+            InputStream file = new FileInputStream(fname);
+            try {
+                return new PipelinedInputStream(new GZIPInputStream(file, CHUNK_SIZE), fname);
+            }
+            catch(IOException e) {
+                file.close();
+                throw new IOException(fname + ": " + e.getMessage(), e);
+            }
+        }
+        else if(lname.endsWith(".bz2") || lname.endsWith(".xz")) {
+            InputStream file = new BufferedInputStream(new FileInputStream(fname), CHUNK_SIZE);
+            try {
+                return new PipelinedInputStream(lname.endsWith(".xz") ? new XZInputStream(file)
+                                                                      : new BZip2InputStream(file),
+                                                fname);
+            }
+            catch(IOException e) {
+                file.close();
+                throw new IOException(fname + ": " + e.getMessage(), e);
+            }
+        }
+
+        return new BufferedInputStream(new FileInputStream(fname), CHUNK_SIZE);
+    }
+
+    /**
+     * Read the whole of fname, decompressed if it has a compression suffix
+     */
+    static byte[] readAll(String fname) throws IOException {
+
+        // the buffer grows as needed; a decompressed size is not known ahead
+        long length = new File(fname).length();
+        int size = (int) Math.min(Integer.MAX_VALUE - 8, length + 1);
+
+        InputStream in = open(fname);
+        try {
+            byte[] data = new byte[Math.max(size, 1024)];
+            int n = 0, r;
+            while((r = in.read(data, n, data.length - n)) > 0) {
+                n += r;
+                if(n == data.length) {
+                    if(n >= Integer.MAX_VALUE - 8) {
+                        throw new IOException(fname + ": too large to read into memory");
+                    }
+                    data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, 2L * n));
+                }
+            }
+            return n == data.length ? data : Arrays.copyOf(data, n);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read at most the first max bytes of fname, decompressed if it has a
+     * compression suffix, e.g., for a header; the rest is not decompressed
+     */
+    static byte[] readPrefix(String fname, int max) throws IOException {
+
+        InputStream in = open(fname);
+        try {
+            byte[] data = new byte[max];
+            int n = 0, r;
+            while(n < max && (r = in.read(data, n, max - n)) > 0) {
+                n += r;
+            }
+            return n == max ? data : Arrays.copyOf(data, n);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * An input stream whose source is read on a separate thread into a
+     * bounded queue of chunks, so that decompression overlaps parsing.
+     */
+    private static class PipelinedInputStream extends InputStream {
+
+        private static final byte[] EOF = new byte[0];
+
+        private final InputStream source;
+        private final BlockingQueue<byte[]> chunks =
+                new ArrayBlockingQueue<byte[]>(CHUNKS_AHEAD);
+        private final Thread producer;
+        private volatile IOException failure;
+        private byte[] chunk;
+        private int pos;
+
+        PipelinedInputStream(InputStream src, String name) {
+            this.source = src;
+            this.producer = new Thread(new Runnable() {
+                public void run() {
+                    produce();
+                }
+            }, "decompress " + name);
+            this.producer.setDaemon(true);
+            this.producer.start();
+        }
+
+        private void produce() {
+            try {
+                while(true) {
+                    byte[] buf = new byte[CHUNK_SIZE];
+                    int n = 0, r;
+                    while(n < buf.length && (r = source.read(buf, n, buf.length - n)) > 0) {
+                        n += r;
+                    }
+                    if(n > 0) {
+                        chunks.put(n == buf.length ? buf : Arrays.copyOf(buf, n));
+                    }
+                    if(n < buf.length) {
+                        break;
+                    }
+                }
+            }
+            catch(IOException e) {
+                failure = e;
+            }
+            catch(RuntimeException e) {
+                failure = new IOException(e);
+            }
+            catch(InterruptedException e) {
+                return;  // closed by reader
+            }
+
+            try {
+                chunks.put(EOF);
+            }
+            catch(InterruptedException e) {
+                // closed by reader
+            }
+        }
+
+        /*
+         * make chunk hold unread bytes; return false at end of stream
+         */
+        private boolean fill() throws IOException {
+            if(chunk == EOF) {
+                return false;
+            }
+            if(chunk != null && pos < chunk.length) {
+                return true;
+            }
+            try {
+                chunk = chunks.take();
+                pos = 0;
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while decompressing");
+            }
+            if(chunk == EOF) {
+                if(failure != null) {
+                    throw failure;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? chunk[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null || chunk == EOF ? 0 : chunk.length - pos;
+        }
+
+        /*
+         * stop the producer and wait for it, so that the source is not closed
+         * under a read in progress
+         */
+        @Override
+        public void close() throws IOException {
+            producer.interrupt();
+            boolean interrupted = false;
+            while(producer.isAlive()) {
+                try {
+                    producer.join();
+                }
+                catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            source.close();
+        }
+    }
+}
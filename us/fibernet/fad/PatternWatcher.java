@@ -0,0 +1,314 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch-folder ingest for live beamline data. New pattern files appearing in
+ * a directory are read with PatternReader once they have stopped growing,
+ * and handed to a Processor on a pool of worker threads.
+ *
+ * Frames waiting for a worker are held in a bounded queue. When the queue is
+ * full, the watcher thread blocks until a worker takes a frame, so a burst of
+ * files is read no faster than it can be processed.
+ */
+public class PatternWatcher {
+
+    /**
+     * Processing pipeline for a newly arrived frame, e.g., background
+     * subtraction, deconvolution and integration. Called on a worker thread.
+     */
+    public interface Processor {
+        void process(String fname, PatternImage image) throws Exception;
+
+        /**
+         * Called instead of process when a new file could not be read
+         */
+        void failed(String fname);
+    }
+
+    private static final String[] PATTERN_SUFFIXES = { "tif", "plr", "cbf", "dat" };
+
+    private final Path dir;
+    private final Processor processor;
+    private final ThreadPoolExecutor workers;
+    private final long settleMillis;
+    private final Map<Path, long[]> pending = new LinkedHashMap<Path, long[]>();  // {size, mtime, since}
+    private final Set<Path> seen = new HashSet<Path>();
+    private String[] datArgs = new String[0];
+    private WatchService watcher;
+    private Thread thread;
+
+    /**
+     * @param dir  directory to watch
+     * @param processor  called for every new frame
+     * @param nworkers  number of worker threads
+     * @param queueSize  number of frames that may wait for a worker
+     * @param settleMillis  time a file's size and mtime must stay unchanged
+     *                      before it is considered completely written
+     */
+    public PatternWatcher(Path dir, Processor processor, int nworkers, int queueSize,
+                          long settleMillis) {
+        this.dir = dir;
+        this.processor = processor;
+        this.settleMillis = settleMillis;
+        this.workers = new ThreadPoolExecutor(nworkers, nworkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor pool) {
+                        if(pool.isShutdown()) {
+                            throw new RejectedExecutionException("watcher stopped");
+                        }
+                        try {
+                            pool.getQueue().put(r);  // back-pressure: wait for room
+                        }
+                        catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    public PatternWatcher(Path dir, Processor processor) {
+        this(dir, processor, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 4, 1000);
+    }
+
+    /**
+     * @param args  width, height and optional DAT arguments, as for
+     *              PatternReader.readPattern, used for DAT frames. Until
+     *              they are set, DAT files are ignored, having no size.
+     */
+    public synchronized void setDatArgs(String... args) {
+        datArgs = args.clone();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Start watching. Files already in the directory are ignored.
+     */
+    public synchronized void start() throws IOException {
+
+        if(thread != null) {
+            return;
+        }
+
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                     StandardWatchEventKinds.ENTRY_MODIFY);
+        DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+        try {
+            for(Path p : ds) {
+                seen.add(p);
+            }
+        }
+        finally {
+            ds.close();
+        }
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "watch " + dir);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching. Frames already queued are still processed. A stopped
+     * watcher cannot be started again.
+     */
+    public synchronized void stop() {
+        if(thread == null) {
+            return;
+        }
+        try {
+            watcher.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+        thread.interrupt();
+        thread = null;
+        workers.shutdown();
+    }
+
+    public synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    /*
+     * Watcher thread: collect new files, and submit each once it has settled
+     */
+    private void watch() {
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(Math.max(50, settleMillis / 4), TimeUnit.MILLISECONDS);
+                if(key != null) {
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan();
+                        }
+                        else {
+                            track(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                submitSettled();
+            }
+        }
+        catch(ClosedWatchServiceException e) {
+            // stopped
+        }
+        catch(InterruptedException e) {
+            // stopped
+        }
+        catch(RejectedExecutionException e) {
+            // stopped while a settled file was being submitted
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void rescan() throws IOException {
+        DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+        try {
+            for(Path p : ds) {
+                track(p);
+            }
+        }
+        finally {
+            ds.close();
+        }
+    }
+
+    private void track(Path p) {
+        if(!seen.contains(p) && !pending.containsKey(p) && isPattern(p)) {
+            pending.put(p, new long[] { -1, -1, 0 });
+        }
+    }
+
+    /*
+     * Submit pending files whose size and mtime have not changed for settleMillis
+     */
+    private void submitSettled() {
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+
+        while(it.hasNext()) {
+            Map.Entry<Path, long[]> e = it.next();
+            File f = e.getKey().toFile();
+            long[] state = e.getValue();
+            if(!f.isFile()) {
+                if(!f.exists()) {
+                    it.remove();
+                }
+                continue;
+            }
+            if(f.length() != state[0] || f.lastModified() != state[1]) {
+                state[0] = f.length();
+                state[1] = f.lastModified();
+                state[2] = now;
+            }
+            else if(now - state[2] >= settleMillis && f.length() > 0) {
+                it.remove();
+                seen.add(e.getKey());
+                submit(f.getPath());
+            }
+        }
+    }
+
+    private void submit(final String fname) {
+
+        final String[] args;
+        synchronized(this) {
+            args = new String[datArgs.length + 1];
+            args[0] = fname;
+            System.arraycopy(datArgs, 0, args, 1, datArgs.length);
+        }
+
+        workers.execute(new Runnable() {
+            public void run() {
+                PatternImage image = PatternReader.readPattern(args);
+                if(image == null) {
+                    processor.failed(fname);
+                    return;
+                }
+                try {
+                    processor.process(fname, image);
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private boolean isPattern(Path p) {
+        String name = PatternStreams.uncompressedName(p.getFileName().toString()).toLowerCase();
+        for(String suffix : PATTERN_SUFFIXES) {
+            if(name.endsWith("." + suffix)) {
+                return !suffix.equals("dat") || hasDatArgs();
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean hasDatArgs() {
+        return datArgs.length >= 2;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright Billy Zheng. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the whitespace separated fields of PLR data records directly from a
+ * byte buffer, without creating Strings.
+ */
+class PlrScanner {
+
+    // powers of 10 that are exact in a double
+    private static final double[] POW10 = {
+        1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final ByteBuffer buf;
+    private final int end;
+    private int pos;
+
+    PlrScanner(ByteBuffer buf, int pos, int end) {
+        this.buf = buf;
+        this.pos = pos;
+        this.end = end;
+    }
+
+    int position()          { return pos; }
+    void position(int p)    { pos = p;    }
+
+    /**
+     * skip blanks and the field that follows them
+     */
+    void skipField() {
+        skipBlanks();
+        while(pos < end && !isBlank(buf.get(pos)) && buf.get(pos) != '\n') {
+            ++pos;
+        }
+    }
+
+    /**
+     * @return  true if another field follows on the current line
+     */
+    boolean hasField() {
+        skipBlanks();
+        return pos < end && buf.get(pos) != '\n';
+    }
+
+    /**
+     * move to the start of the next line
+     */
+    void nextLine() {
+        while(pos < end && buf.get(pos++) != '\n') {
+            ;
+        }
+    }
+
+    /**
+     * parse the next field as an int; a magnitude beyond the int range
+     * saturates
+     */
+    int nextInt() {
+        skipBlanks();
+        int start = pos;
+        boolean neg = false;
+        if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+            neg = buf.get(pos++) == '-';
+        }
+        long val = 0;
+        while(pos < end) {
+            int c = buf.get(pos) - '0';
+            if(c < 0 || c > 9) {
+                break;
+            }
+            val = Math.min(val * 10 + c, Integer.MAX_VALUE);  // saturate
+            ++pos;
+        }
+        if(pos == start || !endOfField()) {
+            throw new NumberFormatException(fieldAt(start));
+        }
+        return (int) (neg ? -val : val);
+    }
+
+    /**
+     * parse the next field as a double. Plain decimals with up to 15 digits
+     * are converted exactly as Double.parseDouble does; anything else falls
+     * back to Double.parseDouble.
+     */
+    double nextDouble() {
+        skipBlanks();
+        int start = pos;
+        boolean neg = false;
+        if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) {
+            neg = buf.get(pos++) == '-';
+        }
+
+        long mantissa = 0;
+        int digits = 0, scale = 0;
+        boolean dot = false, any = false;
+        while(pos < end) {
+            byte c = buf.get(pos);
+            if(c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if(mantissa != 0) {
+                    ++digits;
+                }
+                if(dot) {
+                    ++scale;
+                }
+                any = true;
+            }
+            else if(c == '.' && !dot) {
+                dot = true;
+            }
+            else {
+                break;
+            }
+            ++pos;
+        }
+
+        if(!endOfField() || digits > 15 || scale >= POW10.length) {
+            skipField();
+            return Double.parseDouble(fieldAt(start));
+        }
+        if(!any) {
+            throw new NumberFormatException(fieldAt(start));
+        }
+
+        double val = mantissa / POW10[scale];
+        return neg ? -val : val;
+    }
+
+    /**
+     * @return  bytes [from, to) of buf as a String
+     */
+    static String toString(ByteBuffer buf, int from, int to) {
+        char[] chars = new char[to - from];
+        for(int i=from; i<to; i++) {
+            chars[i - from] = (char) (buf.get(i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    private void skipBlanks() {
+        while(pos < end && isBlank(buf.get(pos))) {
+            ++pos;
+        }
+    }
+
+    private boolean endOfField() {
+        return pos >= end || isBlank(buf.get(pos)) || buf.get(pos) == '\n';
+    }
+
+    private String fieldAt(int start) {
+        int e = start;
+        while(e < end && !isBlank(buf.get(e)) && buf.get(e) != '\n') {
+            ++e;
+        }
+        return toString(buf, start, e);
+    }
+
+    private static boolean isBlank(byte c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+} // class PlrScanner
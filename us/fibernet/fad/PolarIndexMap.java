@@ -0,0 +1,177 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+/**
+ * For a PLR geometry, the polar cell every pixel of the Cartesian image
+ * falls in. Pixel (w, h) is at radius row round(sqrt(w*w + h*h)) and angle
+ * column round((atan2(w, h) in degrees - THMIN) / DTHET), so converting a
+ * pattern is a single gather through the map, with no sqrt or atan2.
+ *
+ * Maps are built once per geometry and shared by all patterns with it, and
+ * kept in GeometryCache with their bilinear weights once built.
+ */
+final class PolarIndexMap {
+
+    private static final String CACHE_PREFIX = "PolarIndexMap|";
+
+    final int width;
+    final int height;
+    final int[] cell;    // r * NTHET + a for pixel h * width + w, or -1 if outside the grid
+
+    private final int NR, NTHET;
+    private final double THMIN, DTHET, dthet;
+    private volatile Blend blend;
+
+    /**
+     * Bilinear weights: pixel i lies between cells base[i] and base[i] + 1 in
+     * angle and base[i] + NTHET, base[i] + NTHET + 1 in radius, at fraction
+     * fr[i] along the radius and fa[i] along the angle. A fraction is 0 at
+     * the last row or column, so no cell beyond the grid is needed.
+     */
+    static final class Blend {
+        final int[] base;
+        final float[] fr;
+        final float[] fa;
+
+        Blend(int n) {
+            base = new int[n];
+            fr = new float[n];
+            fa = new float[n];
+        }
+    }
+
+    private PolarIndexMap(int width, int height, final int NR, final int NTHET,
+                          final double THMIN, double DTHET) {
+
+        this.width = width;
+        this.height = height;
+        this.cell = new int[width * height];
+        this.NR = NR;
+        this.NTHET = NTHET;
+        this.THMIN = THMIN;
+        this.DTHET = DTHET;
+        this.dthet = DTHET > 0 ? DTHET : 1;
+        final double dthet = this.dthet;
+        final int W = width;
+
+        ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height), new ParallelUtil.RangeTask() {
+            public void run(int from, int to) {
+                for(int h=from; h<to; h++) {
+                    int i = h * W;
+                    for(int w=0; w<W; w++, i++) {
+                        int r = (int) Math.round(Math.sqrt(h*h + w*w));
+                        int a = (int) Math.round((Math.atan2(w, h) * 180 / Math.PI - THMIN) / dthet);
+                        cell[i] = (r < NR && a >= 0 && a < NTHET) ? r * NTHET + a : -1;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return  the bilinear weights of the pixels inside the grid, built on
+     *          first use
+     */
+    Blend blend() {
+
+        Blend b = blend;
+        if(b != null) {
+            return b;
+        }
+        synchronized(this) {
+            if(blend == null) {
+                blend = newBlend();
+                GeometryCache.charge(this, 12L * cell.length);
+            }
+            return blend;
+        }
+    }
+
+    private Blend newBlend() {
+
+        final Blend nb = new Blend(cell.length);
+        final int W = width;
+
+        ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height), new ParallelUtil.RangeTask() {
+            public void run(int from, int to) {
+                for(int h=from; h<to; h++) {
+                    int i = h * W;
+                    for(int w=0; w<W; w++, i++) {
+                        if(cell[i] < 0) {
+                            continue;
+                        }
+                        double r = Math.sqrt(h*h + w*w);
+                        double a = (Math.atan2(w, h) * 180 / Math.PI - THMIN) / dthet;
+                        int r0 = Math.min((int) r, NR - 1);
+                        int a0 = Math.max(0, Math.min((int) Math.floor(a), NTHET - 1));
+                        nb.base[i] = r0 * NTHET + a0;
+                        nb.fr[i] = r0 < NR - 1 ? (float) (r - r0) : 0;
+                        nb.fa[i] = a0 < NTHET - 1 ? (float) Math.max(0, Math.min(1, a - a0)) : 0;
+                    }
+                }
+            }
+        });
+
+        return nb;
+    }
+
+    /**
+     * @return  true if this is the map get would return for dp, width and
+     *          height; checked without building the cache key
+     */
+    boolean fits(DataPlr dp, int width, int height) {
+        return this.width == width && this.height == height && NR == dp.NR
+            && NTHET == dp.NTHET && THMIN == dp.THMIN && DTHET == dp.DTHET;
+    }
+
+    /**
+     * @return  the map of a width x height image for the geometry of dp,
+     *          built on first use
+     */
+    static PolarIndexMap get(DataPlr dp, int width, int height) {
+
+        String key = CACHE_PREFIX + width + "x" + height + "|" + dp.NR + "|" + dp.RMIN
+                   + "|" + dp.NTHET + "|" + dp.THMIN + "|" + dp.DTHET;
+
+        PolarIndexMap map = (PolarIndexMap) GeometryCache.get(key);
+        if(map != null) {
+            return map;
+        }
+
+        // built outside the lock; two threads may both build a new geometry
+        map = new PolarIndexMap(width, height, dp.NR, dp.NTHET, dp.THMIN, dp.DTHET);
+        GeometryCache.put(key, map, 4L * map.cell.length);
+        return map;
+    }
+
+    static void clear() {
+        GeometryCache.clear(CACHE_PREFIX);
+    }
+}
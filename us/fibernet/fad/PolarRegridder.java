@@ -0,0 +1,561 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Regrids a Cartesian detector image onto the polar grid of a DataInput:
+ * NR radii of width WR pixels from RMIN, and NTHET angles of DTHET degrees
+ * from THMIN, about the beam center (xc, yc). Radius row i covers radii
+ * RMIN + (i +- 0.5) * WR and angle column j covers THMIN + (j +- 0.5) * DTHET
+ * degrees, the angle being atan2(x - xc, y - yc) as in DataPlr.
+ *
+ * Pixels are split: each is divided into split x split sub-pixels, and each
+ * sub-pixel adds its share of the pixel area to the cell its center falls in.
+ * The shares are kept as a sparse matrix in compressed sparse row form, one
+ * row per polar cell, so regridding a frame is a sparse matrix-vector
+ * product, run in parallel over cells. The value of a cell is the area
+ * weighted mean of the pixels covering it.
+ *
+ * A folding regridder maps the four quadrants about the beam center and
+ * the meridian onto the same cells, the angle being measured from the
+ * meridian within the quadrant, 0 to 90 degrees. Fiber patterns being
+ * cylindrically symmetric, every cell then averages the four mirror images.
+ * The meridian may be tilted from the image y axis.
+ *
+ * Masked pixels, and pixels with negative values (the dead pixels of CBF),
+ * can be left out of a frame; the weights of a cell are then renormalized
+ * over the pixels left, and the pixel count of each cell is reported.
+ *
+ * Matrices are built once per grid, center and image size, shared, and kept
+ * in GeometryCache. The DataPlr header of regrid is taken from the
+ * DataInput passed to get, so the wavelength, distances and repeat may change
+ * without a new matrix.
+ */
+public final class PolarRegridder {
+
+    public static final int DEFAULT_SPLIT = 4;
+
+    private static final String CACHE_PREFIX = "PolarRegridder|";
+
+    private final DataInput geometry;   // header of regrid
+    private final int width, height;    // of the images regridded
+    private final int NR, NTHET;
+
+    // sparse matrix: cell c takes weight[k] of pixel column[k], k in [rowStart[c], rowStart[c + 1])
+    private final int[] rowStart;
+    private final int[] column;         // pixel y * width + x
+    private final float[] weight;       // fraction of the pixel's area
+    private final float[] coverage;     // sum of the weights of each cell
+
+    private PolarRegridder(Matrix m, DataInput geometry) {
+        this.geometry = geometry;
+        this.width = m.width;
+        this.height = m.height;
+        this.NR = m.NR;
+        this.NTHET = m.NTHET;
+        this.rowStart = m.rowStart;
+        this.column = m.column;
+        this.weight = m.weight;
+        this.coverage = m.coverage;
+    }
+
+    /*
+     * The sparse matrix of a grid, center and image size, shared by the
+     * regridders of all headers with them
+     */
+    private static final class Matrix {
+
+        final int width, height;
+        final int NR, NTHET;
+        final int[] rowStart;
+        final int[] column;
+        final float[] weight;
+        final float[] coverage;
+
+        Matrix(DataInput in, double xc, double yc, double tilt, boolean fold,
+               int width, int height, int split) {
+
+            this.width = width;
+            this.height = height;
+            this.NR = in.NR();
+            this.NTHET = (int) in.NTHET();
+
+            // pixel to cell contributions of every image row, built in parallel
+            final Row[] rows = new Row[height];
+            final Mapper mapper = new Mapper(in, xc, yc, tilt, fold, split);
+            final int W = width;
+
+            ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height),
+                                  new ParallelUtil.RangeTask() {
+                public void run(int from, int to) {
+                    for(int y=from; y<to; y++) {
+                        rows[y] = mapper.mapRow(y, W);
+                    }
+                }
+            });
+
+            // transpose into rows by cell; pixels of a cell stay in ascending order
+            int ncells = NR * NTHET;
+            rowStart = new int[ncells + 1];
+            for(Row row : rows) {
+                for(int k=0; k<row.n; k++) {
+                    ++rowStart[row.cells[k] + 1];
+                }
+            }
+            for(int c=0; c<ncells; c++) {
+                rowStart[c + 1] += rowStart[c];
+            }
+
+            int nnz = rowStart[ncells];
+            column = new int[nnz];
+            weight = new float[nnz];
+            coverage = new float[ncells];
+            int[] next = new int[ncells];
+            System.arraycopy(rowStart, 0, next, 0, ncells);
+            for(int y=0; y<height; y++) {
+                Row row = rows[y];
+                for(int k=0; k<row.n; k++) {
+                    int c = row.cells[k];
+                    int n = next[c]++;
+                    column[n] = row.pixels[k];
+                    weight[n] = row.weights[k];
+                    coverage[c] += row.weights[k];
+                }
+                rows[y] = null;
+            }
+        }
+
+        long sizeInBytes() {
+            return 4L * (rowStart.length + column.length + weight.length + coverage.length);
+        }
+    }
+
+    /**
+     * @return  the regridder of width x height images for geometry in and
+     *          beam center (xc, yc) in pixels, with DEFAULT_SPLIT
+     */
+    public static PolarRegridder get(DataInput in, double xc, double yc, int width, int height) {
+        return get(in, xc, yc, width, height, DEFAULT_SPLIT);
+    }
+
+    /**
+     * @param split  sub-pixels per pixel side; 1 maps each pixel by its center
+     */
+    public static PolarRegridder get(DataInput in, double xc, double yc, int width, int height,
+                                     int split) {
+        return get(in, xc, yc, 0, false, width, height, split);
+    }
+
+    /**
+     * @return  the regridder folding the quadrants of width x height images
+     *          about beam center (xc, yc) and a meridian tilted tilt degrees
+     *          from the image y axis towards x, with DEFAULT_SPLIT
+     */
+    public static PolarRegridder folding(DataInput in, double xc, double yc, double tilt,
+                                         int width, int height) {
+        return get(in, xc, yc, tilt, true, width, height, DEFAULT_SPLIT);
+    }
+
+    private static PolarRegridder get(DataInput in, double xc, double yc, double tilt,
+                                      boolean fold, int width, int height, int split) {
+
+        split = Math.max(1, split);
+        String key = CACHE_PREFIX + width + "x" + height + "|" + xc + "|" + yc + "|" + tilt
+                   + "|" + fold + "|" + split + "|" + in.RMIN()
+                   + "|" + in.NR() + "|" + in.WR() + "|" + in.THMIN() + "|" + in.DTHET()
+                   + "|" + in.NTHET();
+
+        Matrix m = (Matrix) GeometryCache.get(key);
+        if(m == null) {
+            m = new Matrix(in, xc, yc, tilt, fold, width, height, split);
+            GeometryCache.put(key, m, m.sizeInBytes());
+        }
+        return new PolarRegridder(m, copyOf(in));
+    }
+
+    public static void clearCache() {
+        GeometryCache.clear(CACHE_PREFIX);
+    }
+
+    public int getNR()          { return NR;            }
+    public int getNTHET()       { return NTHET;         }
+    public int getWidth()       { return width;         }
+    public int getHeight()      { return height;        }
+    public int getNonZeros()    { return column.length; }
+
+    /**
+     * @return  pixel area, in pixels, falling in each cell, radius row after
+     *          row; shared, must not be modified
+     */
+    public float[] getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Regrid image into dest[NR * NTHET], radius row after row. A cell no
+     * pixel covers is set to 0. An off-heap image is read in place, holding
+     * its memory for the whole regrid.
+     */
+    public void apply(PatternImage image, final float[] dest) {
+
+        checkSizes(image, dest);
+
+        withPixels(image, new PixelsTask() {
+            public void run(final Pixels src) {
+                int ncells = NR * NTHET;
+                ParallelUtil.forRange(0, ncells, ParallelUtil.grainFor(ncells),
+                                      new ParallelUtil.RangeTask() {
+                    public void run(int from, int to) {
+                        for(int c=from; c<to; c++) {
+                            double sum = 0;
+                            int end = rowStart[c + 1];
+                            for(int k=rowStart[c]; k<end; k++) {
+                                sum += weight[k] * src.get(column[k]);
+                            }
+                            dest[c] = coverage[c] > 0 ? (float) (sum / coverage[c]) : 0;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Regrid image into dest[NR * NTHET] as apply(image, dest) does, leaving
+     * out pixels that are negative or nonzero in mask. The remaining weights
+     * of each cell are renormalized, and their sum, the pixel area counted,
+     * goes to counts[NR * NTHET] unless counts is null.
+     *
+     * @param mask  an image of the same size, or null for none
+     */
+    public void apply(PatternImage image, final PatternImage mask, final float[] dest,
+                      final float[] counts) {
+
+        checkSizes(image, dest);
+        if(counts != null && counts.length < NR * NTHET) {
+            throw new IllegalArgumentException("counts holds " + counts.length + " of "
+                    + NR * NTHET + " cells");
+        }
+        if(mask != null && (mask.getWidth() != width || mask.getHeight() != height)) {
+            throw new IllegalArgumentException("mask is " + mask.getWidth() + "x"
+                    + mask.getHeight() + ", regridder is for " + width + "x" + height);
+        }
+
+        withPixels(image, new PixelsTask() {
+            public void run(final Pixels src) {
+                if(mask == null) {
+                    applyMasked(src, null, dest, counts);
+                    return;
+                }
+                withPixels(mask, new PixelsTask() {
+                    public void run(Pixels m) {
+                        applyMasked(src, m, dest, counts);
+                    }
+                });
+            }
+        });
+    }
+
+    private void applyMasked(final Pixels src, final Pixels mask, final float[] dest,
+                             final float[] counts) {
+
+        int ncells = NR * NTHET;
+        ParallelUtil.forRange(0, ncells, ParallelUtil.grainFor(ncells), new ParallelUtil.RangeTask() {
+            public void run(int from, int to) {
+                for(int c=from; c<to; c++) {
+                    double sum = 0, area = 0;
+                    int end = rowStart[c + 1];
+                    for(int k=rowStart[c]; k<end; k++) {
+                        int p = column[k];
+                        if(mask != null && mask.get(p) != 0) {
+                            continue;
+                        }
+                        int v = src.get(p);
+                        if(v < 0) {
+                            continue;
+                        }
+                        sum += weight[k] * v;
+                        area += weight[k];
+                    }
+                    dest[c] = area > 0 ? (float) (sum / area) : 0;
+                    if(counts != null) {
+                        counts[c] = (float) area;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Regrid image into a new DataPlr with this geometry. The bin count of a
+     * cell is its coverage rounded to whole pixels.
+     */
+    public DataPlr regrid(PatternImage image) {
+        DataPlr dp = newPlr();
+        apply(image, dp.intensity);
+        setBinCounts(dp, coverage);
+        return dp;
+    }
+
+    /**
+     * Regrid image into a new DataPlr, leaving out masked and negative pixels
+     * as apply(image, mask, dest, counts) does. The bin count of a cell is
+     * the pixel area counted in it, rounded.
+     */
+    public DataPlr regrid(PatternImage image, PatternImage mask) {
+        DataPlr dp = newPlr();
+        float[] counts = new float[NR * NTHET];
+        apply(image, mask, dp.intensity, counts);
+        setBinCounts(dp, counts);
+        return dp;
+    }
+
+    private DataPlr newPlr() {
+
+        DataPlr dp = new DataPlr();
+        dp.IFV = geometry.IFV();
+        dp.NULB = geometry.NULB();
+        dp.RMIN = geometry.RMIN();
+        dp.NR = NR;
+        dp.WR = geometry.WR();
+        dp.DR = geometry.DR();
+        dp.THMIN = geometry.THMIN();
+        dp.DTHET = geometry.DTHET();
+        dp.NTHET = NTHET;
+        dp.XW = geometry.XWAV();
+        dp.SFD = dp.SFD2 = geometry.SFD();
+        dp.REPEAT = geometry.C();
+
+        dp.intensity = new float[NR * NTHET];
+        dp.binCount = new short[NR * NTHET];
+        return dp;
+    }
+
+    private static void setBinCounts(DataPlr dp, float[] counts) {
+        for(int c=0; c<dp.binCount.length; c++) {
+            dp.binCount[c] = (short) Math.min(Short.MAX_VALUE, Math.round(counts[c]));
+        }
+    }
+
+    private void checkSizes(PatternImage image, float[] dest) {
+        if(image.getWidth() != width || image.getHeight() != height) {
+            throw new IllegalArgumentException("image is " + image.getWidth() + "x"
+                    + image.getHeight() + ", regridder is for " + width + "x" + height);
+        }
+        if(dest.length < NR * NTHET) {
+            throw new IllegalArgumentException("dest holds " + dest.length + " of "
+                    + NR * NTHET + " cells");
+        }
+    }
+
+    private interface PixelsTask {
+        void run(Pixels pixels);
+    }
+
+    /*
+     * Run task on the pixels of image: its backing array on the heap, or its
+     * memory off the heap, held until task returns. Any other storage is
+     * copied into an int array first.
+     */
+    private static void withPixels(final PatternImage image, final PixelsTask task) {
+        if(image instanceof IntPatternImage) {
+            task.run(new Pixels(image, ((IntPatternImage) image).getData(), null, null));
+        }
+        else if(image instanceof UShortPatternImage) {
+            task.run(new Pixels(image, null, ((UShortPatternImage) image).getData(), null));
+        }
+        else if(image instanceof DirectPatternImage) {
+            ((DirectPatternImage) image).withBuffer(new DirectPatternImage.BufferTask() {
+                public void run(ByteBuffer buf) {
+                    task.run(new Pixels(image, null, null, buf));
+                }
+            });
+        }
+        else {
+            IntPatternImage copy = new IntPatternImage(image.getWidth(), image.getHeight());
+            copy.copyFrom(image, 0, 0);
+            withPixels(copy, task);
+        }
+    }
+
+    /*
+     * The pixels of an image by their index y * width + x in the matrix
+     * columns, read from an int or char array or a direct buffer, wherever
+     * the image's rows lie in it
+     */
+    private static final class Pixels {
+
+        private final int[] ints;
+        private final char[] chars;
+        private final IntBuffer intBuf;
+        private final CharBuffer charBuf;
+        private final int offset, width, stride;
+
+        Pixels(PatternImage image, int[] ints, char[] chars, ByteBuffer buf) {
+            this.ints = ints;
+            this.chars = chars;
+            boolean wide = image.getPixelType() == PatternReader.PixelType.INT;
+            this.intBuf = buf != null && wide ? buf.asIntBuffer() : null;
+            this.charBuf = buf != null && !wide ? buf.asCharBuffer() : null;
+            this.offset = image.getOffset();
+            this.width = image.getWidth();
+            this.stride = image.getStride();
+        }
+
+        int get(int p) {
+            int i = stride == width ? offset + p : offset + p / width * stride + p % width;
+            if(ints != null) {
+                return ints[i];
+            }
+            if(chars != null) {
+                return chars[i];
+            }
+            return intBuf != null ? intBuf.get(i) : charBuf.get(i);
+        }
+    }
+
+    // a private copy, so later changes to in do not alter the header
+    private static DataInput copyOf(DataInput in) {
+        return new DataInput(in.XWAV(), in.SFD(), in.C(), in.DR(), in.WR(), in.IFV(), in.NULB(),
+                             in.RMIN(), in.NR(), in.THMIN(), in.DTHET(), (int) in.NTHET());
+    }
+
+    // maps the sub-pixels of image rows to polar cells; immutable, shared by threads
+    private static final class Mapper {
+
+        private final double xc, yc, rmin, wr, thmin, dthet;
+        private final double sin, cos;      // of the meridian tilt
+        private final boolean fold;
+        private final int nr, nthet, split;
+        private final double rlo, rhi;      // radii covered by the grid
+
+        Mapper(DataInput in, double xc, double yc, double tilt, boolean fold, int split) {
+            this.xc = xc;
+            this.yc = yc;
+            this.sin = Math.sin(Math.toRadians(tilt));
+            this.cos = Math.cos(Math.toRadians(tilt));
+            this.fold = fold;
+            this.rmin = in.RMIN();
+            this.wr = in.WR() > 0 ? in.WR() : 1;
+            this.thmin = in.THMIN();
+            this.dthet = in.DTHET() > 0 ? in.DTHET() : 1;
+            this.nr = in.NR();
+            this.nthet = (int) in.NTHET();
+            this.split = split;
+            this.rlo = rmin - wr / 2;
+            this.rhi = rmin + (nr - 0.5) * wr;
+        }
+
+        Row mapRow(int y, int width) {
+
+            Row row = new Row();
+            int nsub = split * split;
+            float share = 1.0f / nsub;
+            int[] cells = new int[nsub];
+            float[] shares = new float[nsub];
+
+            for(int x=0; x<width; x++) {
+                // skip pixels that cannot reach the grid; a pixel spans at most
+                // sqrt(2)/2 from its center
+                double r0 = Math.hypot(x - xc, y - yc);
+                if(r0 + 0.7072 < rlo || r0 - 0.7072 >= rhi) {
+                    continue;
+                }
+
+                int m = 0;
+                for(int sy=0; sy<split; sy++) {
+                    double dy = y + (sy + 0.5) / split - 0.5 - yc;
+                    for(int sx=0; sx<split; sx++) {
+                        double dx = x + (sx + 0.5) / split - 0.5 - xc;
+                        int c = cellOf(dx, dy);
+                        if(c < 0) {
+                            continue;
+                        }
+                        int k = 0;
+                        while(k < m && cells[k] != c) {
+                            ++k;
+                        }
+                        if(k == m) {
+                            cells[m] = c;
+                            shares[m++] = 0;
+                        }
+                        shares[k] += share;
+                    }
+                }
+                for(int k=0; k<m; k++) {
+                    row.add(cells[k], shares[k], y * width + x);
+                }
+            }
+            return row;
+        }
+
+        // cell of the point (dx, dy) from the beam center, or -1 off the grid
+        private int cellOf(double dx, double dy) {
+            double r = Math.sqrt(dx * dx + dy * dy);
+            int i = (int) Math.floor((r - rmin) / wr + 0.5);
+            if(i < 0 || i >= nr) {
+                return -1;
+            }
+            // across and along the meridian
+            double e = dx * cos - dy * sin;
+            double m = dx * sin + dy * cos;
+            double theta = fold ? Math.toDegrees(Math.atan2(Math.abs(e), Math.abs(m)))
+                                : Math.toDegrees(Math.atan2(e, m));
+            int j = (int) Math.floor((theta - thmin) / dthet + 0.5);
+            if(j < 0 || j >= nthet) {
+                return -1;
+            }
+            return i * nthet + j;
+        }
+    }
+
+    // contributions of one image row: pixel pixels[k] gives weights[k] to cell cells[k]
+    private static final class Row {
+        int n;
+        int[] cells = new int[64];
+        float[] weights = new float[64];
+        int[] pixels = new int[64];
+
+        void add(int cell, float w, int pixel) {
+            if(n == cells.length) {
+                cells = Arrays.copyOf(cells, 2 * n);
+                weights = Arrays.copyOf(weights, 2 * n);
+                pixels = Arrays.copyOf(pixels, 2 * n);
+            }
+            cells[n] = cell;
+            weights[n] = w;
+            pixels[n++] = pixel;
+        }
+    }
+}
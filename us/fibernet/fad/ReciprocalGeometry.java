@@ -0,0 +1,168 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+/**
+ * Reciprocal-space coordinates of every pixel of a flat detector normal to
+ * the beam, for wavelength XWAV (A), specimen to film distance SFD (mm),
+ * pixel size DR (mm) and beam center (xc, yc) in pixels.
+ *
+ * The fiber axis is taken along the image y axis. A pixel at (x, y) mm from
+ * the center scatters to s = (x/L, y/L, SFD/L - 1) / XWAV on the Ewald
+ * sphere, L = sqrt(x*x + y*y + SFD*SFD), giving
+ *
+ *   Z      = s_y, axial, with the sign of y
+ *   R      = sqrt(s_x^2 + s_z^2), radial, with the sign of x
+ *   d      = 1 / |s|, in A
+ *   ewald  = |s| / (rho / (XWAV * SFD)), rho = sqrt(x*x + y*y): the factor
+ *            taking the flat-film estimate of the reciprocal radius onto
+ *            the sphere; 1 at the center
+ *
+ * and Z * C is the layer line of a fiber repeat C. The four float tables are
+ * built once per geometry, in parallel over image rows, shared, and kept in
+ * GeometryCache.
+ */
+public final class ReciprocalGeometry {
+
+    private static final String CACHE_PREFIX = "ReciprocalGeometry|";
+
+    private final int width, height;
+    private final double C;             // fiber repeat, A
+
+    // per pixel y * width + x
+    private final float[] R;            // 1/A
+    private final float[] Z;            // 1/A
+    private final float[] d;            // A, infinite at the center
+    private final float[] ewald;
+
+    private ReciprocalGeometry(DataInput in, final double xc, final double yc,
+                               final int width, int height) {
+
+        this.width = width;
+        this.height = height;
+        this.C = in.C();
+
+        int n = PatternImage.checkedSize(width, height);
+        R = new float[n];
+        Z = new float[n];
+        d = new float[n];
+        ewald = new float[n];
+
+        final double lambda = in.XWAV();
+        final double sfd = in.SFD();
+        final double pixel = in.DR();
+
+        ParallelUtil.forRange(0, height, ParallelUtil.grainFor(height), new ParallelUtil.RangeTask() {
+            public void run(int from, int to) {
+                double sfd2 = sfd * sfd;
+                for(int py=from; py<to; py++) {
+                    double y = (py - yc) * pixel;
+                    int row = py * width;
+                    for(int px=0; px<width; px++) {
+                        double x = (px - xc) * pixel;
+                        double rho2 = x * x + y * y;
+                        double L = Math.sqrt(rho2 + sfd2);
+
+                        double sx = x / L;
+                        double sz = sfd / L - 1;
+                        double s = Math.sqrt(rho2 / (L * L) + sz * sz) / lambda;
+
+                        int k = row + px;
+                        Z[k] = (float) (y / L / lambda);
+                        R[k] = (float) (Math.copySign(Math.sqrt(sx * sx + sz * sz), x) / lambda);
+                        d[k] = s > 0 ? (float) (1 / s) : Float.POSITIVE_INFINITY;
+                        ewald[k] = rho2 > 0 ? (float) (s * lambda * sfd / Math.sqrt(rho2)) : 1;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return  the tables of width x height images for geometry in and beam
+     *          center (xc, yc) in pixels
+     */
+    public static ReciprocalGeometry get(DataInput in, double xc, double yc, int width, int height) {
+
+        String key = CACHE_PREFIX + width + "x" + height + "|" + xc + "|" + yc + "|" + in.XWAV()
+                   + "|" + in.SFD() + "|" + in.C() + "|" + in.DR();
+
+        ReciprocalGeometry g = (ReciprocalGeometry) GeometryCache.get(key);
+        if(g == null) {
+            g = new ReciprocalGeometry(in, xc, yc, width, height);
+            GeometryCache.put(key, g, 16L * g.R.length);   // four float tables
+        }
+        return g;
+    }
+
+    public static void clearCache() {
+        GeometryCache.clear(CACHE_PREFIX);
+    }
+
+    public int getWidth()   { return width;  }
+    public int getHeight()  { return height; }
+
+    public float R(int x, int y)        { return R[index(x, y)];     }
+    public float Z(int x, int y)        { return Z[index(x, y)];     }
+    public float d(int x, int y)        { return d[index(x, y)];     }
+    public float ewald(int x, int y)    { return ewald[index(x, y)]; }
+
+    /**
+     * @return  the layer line of pixel (x, y) for the fiber repeat C
+     */
+    public double layerLine(int x, int y) {
+        return Z[index(x, y)] * C;
+    }
+
+    /*
+     * The tables, per pixel y * width + x, for stages walking whole images.
+     * Shared, must not be modified.
+     */
+    public float[] getR()       { return R;     }
+    public float[] getZ()       { return Z;     }
+    public float[] getD()       { return d;     }
+    public float[] getEwald()   { return ewald; }
+
+    /**
+     * @return  a one line read-out of pixel (x, y)
+     */
+    public String describe(int x, int y) {
+        int k = index(x, y);
+        return String.format("(%d, %d)  R=%.5f  Z=%.5f  d=%.3f  l=%.2f", x, y, R[k], Z[k], d[k],
+                             Z[k] * C);
+    }
+
+    private int index(int x, int y) {
+        if(x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ") outside " + width + "x"
+                                                + height);
+        }
+        return y * width + x;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+
+import com.sun.media.jai.codec.ByteArraySeekableStream;
+import com.sun.media.jai.codec.FileSeekableStream;
+import com.sun.media.jai.codec.ImageCodec;
+import com.sun.media.jai.codec.ImageDecoder;
+import com.sun.media.jai.codec.SeekableStream;
+import com.sun.media.jai.codec.TIFFDecodeParam;
+
+/**
+ * Iterates over the pages of a multi-page TIFF, e.g., a time-resolved stack,
+ * decoding each page into a PatternImage.
+ *
+ * With maxResident of 2 or more, a background thread decodes the following
+ * pages while the current one is processed. At most maxResident pages are in
+ * memory at once, counting the page returned last by next() and the one
+ * being decoded; the caller must drop its reference to a page before asking
+ * for the next. A page that cannot be decoded is returned as null.
+ *
+ * The pages are read once, in order, so the reader is an Iterator rather
+ * than an Iterable: iterate with while(reader.hasNext()).
+ */
+public class TiffStackReader implements Iterator<PatternImage>, Closeable {
+
+    private static final Object FAILED = new Object();
+
+    private final SeekableStream stream;
+    private final ImageDecoder decoder;
+    private final int numPages;
+    private final PatternImage.Allocator alloc;
+    private final BlockingQueue<Object> decoded;  // null if decoding synchronously
+    private Thread producer;
+    private int nextPage;     // next page next() returns
+    private volatile boolean closed;
+
+    /**
+     * Open a stack with one page decoded ahead
+     */
+    public TiffStackReader(String fname) throws IOException {
+        this(fname, 2);
+    }
+
+    /**
+     * @param maxResident  maximum number of decoded pages in memory; 1 decodes
+     *                     each page only when next() is called
+     */
+    public TiffStackReader(String fname, int maxResident) throws IOException {
+        this(fname, maxResident, PatternImage.HEAP);
+    }
+
+    /**
+     * @param maxResident  maximum number of decoded pages in memory; 1 decodes
+     *                     each page only when next() is called
+     * @param alloc  allocates the pages, e.g., DirectPatternImage.ALLOCATOR
+     *               to keep them off the heap; the caller closes those
+     */
+    public TiffStackReader(String fname, int maxResident, PatternImage.Allocator alloc)
+            throws IOException {
+
+        this.alloc = alloc;
+
+        stream = PatternStreams.isCompressed(fname)
+                ? new ByteArraySeekableStream(PatternStreams.readAll(fname))
+                : new FileSeekableStream(fname);
+        TIFFDecodeParam param = null;
+        decoder = ImageCodec.createImageDecoder("tiff", stream, param);
+        numPages = decoder.getNumPages();
+
+        if(maxResident <= 1) {
+            decoded = null;
+        }
+        else {
+            // one page is held by the caller and one by the producer while it waits
+            decoded = maxResident == 2 ? new SynchronousQueue<Object>()
+                                       : new ArrayBlockingQueue<Object>(maxResident - 2);
+            producer = new Thread(new Runnable() {
+                public void run() {
+                    produce();
+                }
+            }, "decode " + fname);
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    public boolean hasNext() {
+        return !closed && nextPage < numPages;
+    }
+
+    /**
+     * @return  the next page, or null if it could not be decoded
+     */
+    public PatternImage next() {
+
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        int page = nextPage++;
+        if(decoded == null) {
+            return decode(page);
+        }
+
+        try {
+            Object o = decoded.take();
+            return o == FAILED ? null : (PatternImage) o;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoSuchElementException("interrupted while waiting for page " + page);
+        }
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop decoding, free the pages decoded but not returned, and close the file
+     */
+    public void close() throws IOException {
+        closed = true;
+        if(producer != null) {
+            producer.interrupt();
+            try {
+                producer.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Object page;
+            while((page = decoded.poll()) != null) {
+                free(page);
+            }
+        }
+        stream.close();
+    }
+
+    /*
+     * Background thread: decode pages in order and queue them
+     */
+    private void produce() {
+        for(int page=0; page<numPages && !closed; page++) {
+            PatternImage image = decode(page);
+            try {
+                decoded.put(image == null ? FAILED : image);
+            }
+            catch(InterruptedException e) {
+                free(image);   // closed; the page was never queued
+                return;
+            }
+        }
+    }
+
+    /*
+     * Release the memory of an off-heap page; heap pages are left to the GC
+     */
+    private static void free(Object page) {
+        if(page instanceof DirectPatternImage) {
+            ((DirectPatternImage) page).close();
+        }
+    }
+
+    private PatternImage decode(int page) {
+        try {
+            return PatternReader.renderedToImage(decoder.decodeAsRenderedImage(page), alloc);
+        }
+        catch(Exception e) {
+            if(!closed) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+}
@@ -98,6 +98,38 @@ public class UIControl extends JPanel {
 
     //public DataControl.DatumDef
 
+    /*
+     * run a RUN tab command on DataControl.run. The radius commands start
+     * from the radius in NcurrR and put the radius loaded back there.
+     */
+    private void runCommand(String name) {
+
+        DataRun run = DataControl.run;
+        boolean loaded;
+
+        if(name.equals("CurrR") || name.equals("NextR") || name.equals("PrevR")) {
+            if(parTable.containsKey("NcurrR")) {
+                run.VcurR((int)(parTable.get("NcurrR").getValue() + 0.5));
+            }
+            if(name.equals("CurrR")) {
+                loaded = run.runCurrR();
+            }
+            else if(name.equals("NextR")) {
+                loaded = run.runNextR();
+            }
+            else {
+                loaded = run.runPrevR();
+            }
+            if(!loaded) {
+                JOptionPane.showMessageDialog(null, "No such radius. Open a PLR pattern and "
+                        + "enter a radius from 1 to its NR.", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+            else if(parTable.containsKey("NcurrR")) {
+                parTable.get("NcurrR").setValue(run.VcurR());
+            }
+        }
+    }
+
     private void createTabPage(JPanel parent, DatumDef[] widgets) {
 
         //
@@ -114,6 +146,11 @@ public class UIControl extends JPanel {
                     jc = new JButton(widgets[i].getName());
                     jc.setMinimumSize(new Dimension(WIDGET_WIDTH, WIDGET_HEIGHT));
                     jc.setMaximumSize(new Dimension(WIDGET_WIDTH, WIDGET_HEIGHT));
+                    ((JButton) jc).addActionListener(new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            runCommand(((JButton)e.getSource()).getText());
+                        }
+                    });
                     jclist.add(jc);
                     break;
                     //
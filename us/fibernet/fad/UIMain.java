@@ -117,6 +117,14 @@ public final class UIMain {
         mainFrame.setVisible(true);
     }
 
+    /**
+     * @return  the message panel of the main window, or null if the main
+     *          window has not been created
+     */
+    public static synchronized UIMessage getUIMessage() {
+        return uiMessage;
+    }
+
     /**
      * @param args (w, h, x, y, wControl, hMessage) <br>
      *              w, h, x, y: app window's startup dimension and top-left position. <br>
@@ -28,30 +28,98 @@
 
 package us.fibernet.fad;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.event.ActionListener;
+import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JTextField;
 
 /**
- * A JPanel containing a text field for displaying message and information
+ * A JPanel containing a text field for displaying message and information,
+ * and a progress bar with a Cancel button shown while a long task runs.
+ * All methods must be called on the event dispatch thread.
  */
 @SuppressWarnings("serial")
 public final class UIMessage extends JPanel {
 
     private JFrame parentFrame;
     private JTextField textField;
+    private JPanel progressPanel;
+    private JProgressBar progressBar;
+    private JButton cancelButton;
+    private ActionListener cancelListener;
 
     public UIMessage(JFrame parent, int width, int height) {
         this.parentFrame = parent;
         setPreferredSize(new Dimension(width, height));
+        setLayout(new BorderLayout());
         textField = new JTextField();
         textField.setBackground(this.getBackground().brighter());
         textField.setEditable(false);
+        add(textField, BorderLayout.CENTER);
+
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        cancelButton = new JButton("Cancel");
+        progressPanel = new JPanel(new BorderLayout());
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.LINE_END);
+        progressPanel.setVisible(false);
+        add(progressPanel, BorderLayout.LINE_END);
     }
 
     public void setMessage(String messsage) {
         textField.setText(messsage);
     }
 
+    /**
+     * Show message with an indeterminate progress bar and a Cancel button
+     *
+     * @param onCancel  called when Cancel is pressed, may be null
+     */
+    public void startProgress(String message, ActionListener onCancel) {
+        setMessage(message);
+        if(cancelListener != null) {
+            cancelButton.removeActionListener(cancelListener);
+        }
+        cancelListener = onCancel;
+        if(onCancel != null) {
+            cancelButton.addActionListener(onCancel);
+        }
+        cancelButton.setEnabled(onCancel != null);
+        progressBar.setIndeterminate(true);
+        progressBar.setString("");
+        progressPanel.setVisible(true);
+        revalidate();
+    }
+
+    /**
+     * @param percent  progress in [0, 100]; negative for indeterminate
+     */
+    public void setProgress(String message, int percent) {
+        setMessage(message);
+        progressBar.setIndeterminate(percent < 0);
+        if(percent >= 0) {
+            progressBar.setValue(percent);
+            progressBar.setString(percent + "%");
+        }
+    }
+
+    /**
+     * Hide progress bar and Cancel button, and show message
+     */
+    public void stopProgress(String message) {
+        setMessage(message);
+        if(cancelListener != null) {
+            cancelButton.removeActionListener(cancelListener);
+            cancelListener = null;
+        }
+        progressBar.setIndeterminate(false);
+        progressPanel.setVisible(false);
+        revalidate();
+    }
+
 }
\ No newline at end of file
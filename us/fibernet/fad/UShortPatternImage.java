@@ -0,0 +1,130 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.util.Arrays;
+
+import us.fibernet.fad.PatternReader.PixelType;
+
+/**
+ * A PatternImage with 16-bit unsigned pixels in a char array, half the size
+ * of an IntPatternImage. Values written outside [0, 65535] are saturated.
+ */
+public class UShortPatternImage extends PatternImage {
+
+    private final char[] data;
+
+    /**
+     * Create a width x height image of zeros
+     */
+    public UShortPatternImage(int width, int height) {
+        this(new char[checkedSize(width, height)], 0, width, height, width);
+    }
+
+    /**
+     * Wrap data as an image without copying
+     *
+     * @param offset  index of pixel (0, 0) in data
+     * @param stride  distance in data between vertically adjacent pixels
+     */
+    public UShortPatternImage(char[] data, int offset, int width, int height, int stride) {
+        super(data.length, offset, width, height, stride);
+        this.data = data;
+    }
+
+    public PixelType getPixelType() {
+        return PixelType.USHORT;
+    }
+
+    /**
+     * @return  the backing array; pixel (x, y) is at index(x, y)
+     */
+    public char[] getData() {
+        return data;
+    }
+
+    public int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    public void set(int x, int y, int value) {
+        data[offset + y * stride + x] = saturate(value);
+    }
+
+    public void getPixels(int x, int y, int w, int h, int[] dest) {
+        checkRegion(x, y, w, h);
+        for(int r=0, k=0; r<h; r++) {
+            for(int i=index(x, y + r), end=i + w; i<end; i++) {
+                dest[k++] = data[i];
+            }
+        }
+    }
+
+    public void setPixels(int x, int y, int w, int h, int[] src) {
+        checkRegion(x, y, w, h);
+        for(int r=0, k=0; r<h; r++) {
+            for(int i=index(x, y + r), end=i + w; i<end; i++) {
+                data[i] = saturate(src[k++]);
+            }
+        }
+    }
+
+    public PatternImage region(int x, int y, int w, int h) {
+        checkRegion(x, y, w, h);
+        return new UShortPatternImage(data, index(x, y), w, h, stride);
+    }
+
+    public PatternImage copy() {
+        if(isContiguous()) {
+            return new UShortPatternImage(Arrays.copyOfRange(data, offset, offset + width * height),
+                                          0, width, height, width);
+        }
+        UShortPatternImage image = new UShortPatternImage(width, height);
+        for(int y=0; y<height; y++) {
+            System.arraycopy(data, index(0, y), image.data, y * width, width);
+        }
+        return image;
+    }
+
+    public void fill(int value) {
+        char c = saturate(value);
+        for(int y=0; y<height; y++) {
+            int i = index(0, y);
+            Arrays.fill(data, i, i + width, c);
+        }
+    }
+
+    public long sizeInBytes() {
+        return 16 + 2L * data.length;
+    }
+
+    static char saturate(int value) {
+        return (char) (value < 0 ? 0 : value > 0xffff ? 0xffff : value);
+    }
+}
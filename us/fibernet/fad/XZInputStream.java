@@ -0,0 +1,868 @@
+/*
+ * Copyright Xiao Yi, Wen Bian and Philip Cook. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are
+ * permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this list
+ *   of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice, this
+ *   list of conditions and the following disclaimer listed in this license in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * - Neither the name of the copyright holders nor the names of its contributors may
+ *   be used to endorse or promote products derived from this software without specific
+ *   prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ * THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF
+ * THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package us.fibernet.fad;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Decompresses an xz stream, or several concatenated ones, whose blocks use
+ * the LZMA2 filter alone, as the xz program writes by default. Other filter
+ * chains (BCJ, delta) are reported as an IOException. The CRC32, CRC64 or
+ * SHA-256 check of each block is verified.
+ *
+ * Output is decoded into the LZMA2 dictionary, at most a few tens of MB, as
+ * it is read.
+ */
+final class XZInputStream extends InputStream {
+
+    private static final byte[] HEADER_MAGIC = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final int LZMA2_FILTER = 0x21;
+    private static final int[] CHECK_SIZES = {0, 4, 4, 4, 8, 8, 8, 16, 16, 16, 32, 32, 32, 64, 64, 64};
+    private static final int CHECK_NONE = 0, CHECK_CRC32 = 1, CHECK_CRC64 = 4, CHECK_SHA256 = 10;
+
+    private static final long[] CRC64_TABLE = new long[256];
+
+    static {
+        for(int i=0; i<256; i++) {
+            long c = i;
+            for(int k=0; k<8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0xc96c5795d7870f42L : c >>> 1;
+            }
+            CRC64_TABLE[i] = c;
+        }
+    }
+
+    private final DataInputStream in;
+    private long consumed;              // bytes read from in
+
+    private int checkType;
+    private boolean eof;
+
+    // current block
+    private boolean inBlock;
+    private long blockStart;            // consumed at the start of the block header
+    private CRC32 crc32;
+    private long crc64;
+    private MessageDigest sha256;
+
+    // LZMA2
+    private Dictionary dict;
+    private Lzma lzma;
+    private int chunkLeft;              // uncompressed bytes of the current chunk still to come
+    private boolean chunkIsLzma;
+    private boolean needDictReset, needProps;
+
+    private final byte[] one = new byte[1];
+
+    XZInputStream(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        if(!readStreamHeader()) {
+            throw new IOException("not an xz stream");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+
+        if(len == 0) {
+            return 0;
+        }
+
+        while(true) {
+            if(eof) {
+                return -1;
+            }
+            if(!inBlock) {
+                if(!nextBlock()) {
+                    continue;
+                }
+            }
+            if(chunkLeft == 0 && !nextChunk()) {
+                endBlock();
+                continue;
+            }
+
+            int n = Math.min(len, chunkLeft);
+            dict.setLimit(n);
+            if(chunkIsLzma) {
+                lzma.decode(dict);
+            }
+            else {
+                consumed += dict.copyUncompressed(in, n);
+            }
+            n = dict.flush(b, off);
+            chunkLeft -= n;
+            if(chunkLeft == 0 && chunkIsLzma) {
+                lzma.rc.checkFinished();
+            }
+            updateCheck(b, off, n);
+            return n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        dict = null;
+        lzma = null;
+        in.close();
+    }
+
+    /*
+     * stream header; false at the end of input. Zero padding between
+     * concatenated streams is skipped.
+     */
+    private boolean readStreamHeader() throws IOException {
+
+        byte[] h = new byte[12];
+        int first = in.read();
+        while(first == 0) {
+            // stream padding comes in groups of four zero bytes
+            byte[] pad = new byte[3];
+            readFully(pad);
+            if(pad[0] != 0 || pad[1] != 0 || pad[2] != 0) {
+                throw new IOException("bad xz stream padding");
+            }
+            ++consumed;
+            first = in.read();
+        }
+        if(first < 0) {
+            return false;
+        }
+        ++consumed;
+        h[0] = (byte) first;
+        readFully(h, 1, 11);
+
+        for(int i=0; i<HEADER_MAGIC.length; i++) {
+            if(h[i] != HEADER_MAGIC[i]) {
+                throw new IOException("bad xz stream header");
+            }
+        }
+        if(h[6] != 0 || (h[7] & 0xf0) != 0 || crc32(h, 6, 2) != le32(h, 8)) {
+            throw new IOException("bad xz stream flags");
+        }
+        checkType = h[7] & 0x0f;
+        return true;
+    }
+
+    /*
+     * start the next block, or read the index and footer ending the stream;
+     * false if the stream ended
+     */
+    private boolean nextBlock() throws IOException {
+
+        blockStart = consumed;
+        int size = readByte();
+        if(size == 0) {
+            skipIndexAndFooter();
+            if(!readStreamHeader()) {
+                eof = true;
+            }
+            return false;
+        }
+
+        byte[] h = new byte[(size + 1) * 4];
+        h[0] = (byte) size;
+        readFully(h, 1, h.length - 1);
+        if(crc32(h, 0, h.length - 4) != le32(h, h.length - 4)) {
+            throw new IOException("xz block header CRC error");
+        }
+
+        int flags = h[1] & 0xff;
+        if((flags & 0x3c) != 0) {
+            throw new IOException("unsupported xz block flags");
+        }
+        int[] pos = {2};
+        if((flags & 0x40) != 0) {
+            varint(h, pos);   // compressed size
+        }
+        if((flags & 0x80) != 0) {
+            varint(h, pos);   // uncompressed size
+        }
+        if((flags & 0x03) != 0) {
+            throw new IOException("xz filter chains other than LZMA2 alone are not supported");
+        }
+        long filter = varint(h, pos);
+        long propsSize = varint(h, pos);
+        if(filter != LZMA2_FILTER || propsSize != 1) {
+            throw new IOException("unsupported xz filter 0x" + Long.toHexString(filter));
+        }
+        int props = h[pos[0]] & 0xff;
+        if(props > 40) {
+            throw new IOException("bad LZMA2 dictionary size");
+        }
+        long dictSize = props == 40 ? 0xffffffffL : (2L | (props & 1)) << (props / 2 + 11);
+        if(dictSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("LZMA2 dictionary too large: " + dictSize);
+        }
+
+        if(dict == null || dict.size() < dictSize) {
+            dict = new Dictionary((int) Math.max(dictSize, 4096));
+        }
+        dict.reset();
+        if(lzma == null) {
+            lzma = new Lzma();
+        }
+        needDictReset = true;
+        needProps = true;
+        chunkLeft = 0;
+
+        crc32 = checkType == CHECK_CRC32 ? new CRC32() : null;
+        crc64 = -1;
+        sha256 = null;
+        if(checkType == CHECK_SHA256) {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e) {
+                sha256 = null;   // left unchecked
+            }
+        }
+        inBlock = true;
+        return true;
+    }
+
+    /*
+     * read the next LZMA2 chunk header; false at the end of the block
+     */
+    private boolean nextChunk() throws IOException {
+
+        int control = readByte();
+        if(control == 0) {
+            return false;
+        }
+
+        if(control == 1 || control == 2) {
+            // uncompressed chunk, with a dictionary reset if 1
+            if(control == 1) {
+                dict.reset();
+                needDictReset = false;
+            }
+            else if(needDictReset) {
+                throw new IOException("LZMA2 chunk without dictionary reset");
+            }
+            chunkLeft = readUInt16() + 1;
+            chunkIsLzma = false;
+            return true;
+        }
+        if(control < 0x80) {
+            throw new IOException("bad LZMA2 chunk");
+        }
+
+        int reset = (control >>> 5) & 3;
+        if(reset == 3) {
+            dict.reset();
+            needDictReset = false;
+        }
+        else if(needDictReset) {
+            throw new IOException("LZMA2 chunk without dictionary reset");
+        }
+
+        chunkLeft = ((control & 0x1f) << 16) + readUInt16() + 1;
+        int packed = readUInt16() + 1;
+
+        if(reset >= 2) {
+            int p = readByte();
+            if(p > 224) {
+                throw new IOException("bad LZMA properties");
+            }
+            int pb = p / 45;
+            int lp = (p % 45) / 9;
+            int lc = p % 9;
+            if(lc + lp > 4) {
+                throw new IOException("bad LZMA properties");
+            }
+            lzma.setProperties(lc, lp, pb);
+            needProps = false;
+        }
+        else if(needProps) {
+            throw new IOException("LZMA2 chunk without properties");
+        }
+        if(reset >= 1) {
+            lzma.reset();
+        }
+
+        lzma.rc.fill(this, packed);
+        chunkIsLzma = true;
+        return true;
+    }
+
+    /*
+     * block padding and check
+     */
+    private void endBlock() throws IOException {
+
+        while(((consumed - blockStart) & 3) != 0) {
+            if(readByte() != 0) {
+                throw new IOException("bad xz block padding");
+            }
+        }
+
+        byte[] check = new byte[CHECK_SIZES[checkType]];
+        readFully(check);
+        if(checkType == CHECK_CRC32) {
+            if((int) crc32.getValue() != le32(check, 0)) {
+                throw new IOException("xz block CRC32 error");
+            }
+        }
+        else if(checkType == CHECK_CRC64) {
+            long c = ~crc64;
+            for(int i=0; i<8; i++) {
+                if((byte) (c >>> (8 * i)) != check[i]) {
+                    throw new IOException("xz block CRC64 error");
+                }
+            }
+        }
+        else if(checkType == CHECK_SHA256 && sha256 != null) {
+            if(!Arrays.equals(sha256.digest(), check)) {
+                throw new IOException("xz block SHA-256 error");
+            }
+        }
+        inBlock = false;
+    }
+
+    private void updateCheck(byte[] b, int off, int n) {
+        if(crc32 != null) {
+            crc32.update(b, off, n);
+        }
+        else if(checkType == CHECK_CRC64) {
+            long c = crc64;
+            for(int i=off; i<off+n; i++) {
+                c = CRC64_TABLE[(int) (c ^ b[i]) & 0xff] ^ (c >>> 8);
+            }
+            crc64 = c;
+        }
+        else if(sha256 != null) {
+            sha256.update(b, off, n);
+        }
+    }
+
+    /*
+     * the index after the blocks, already started by its zero indicator byte,
+     * and the stream footer. Their CRCs are checked; the records are not
+     * matched against the blocks.
+     */
+    private void skipIndexAndFooter() throws IOException {
+
+        CRC32 crc = new CRC32();
+        crc.update(0);
+        long start = consumed - 1;
+        long records = readVarint(crc);
+        for(long i=0; i<2*records; i++) {
+            readVarint(crc);
+        }
+        while(((consumed - start) & 3) != 0) {
+            int b = readByte();
+            if(b != 0) {
+                throw new IOException("bad xz index padding");
+            }
+            crc.update(b);
+        }
+        byte[] c = new byte[4];
+        readFully(c);
+        if((int) crc.getValue() != le32(c, 0)) {
+            throw new IOException("xz index CRC error");
+        }
+
+        byte[] footer = new byte[12];
+        readFully(footer);
+        if(footer[10] != 'Y' || footer[11] != 'Z' || crc32(footer, 4, 6) != le32(footer, 0)) {
+            throw new IOException("bad xz stream footer");
+        }
+    }
+
+    private long readVarint(CRC32 crc) throws IOException {
+        long v = 0;
+        for(int i=0; i<9; i++) {
+            int b = readByte();
+            crc.update(b);
+            v |= (long) (b & 0x7f) << (7 * i);
+            if((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("bad xz varint");
+    }
+
+    private static long varint(byte[] h, int[] pos) throws IOException {
+        long v = 0;
+        for(int i=0; i<9 && pos[0] < h.length - 4; i++) {
+            int b = h[pos[0]++] & 0xff;
+            v |= (long) (b & 0x7f) << (7 * i);
+            if((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("bad xz block header");
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if(b < 0) {
+            throw new IOException("unexpected end of xz stream");
+        }
+        ++consumed;
+        return b;
+    }
+
+    private int readUInt16() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        in.readFully(b, off, len);
+        consumed += len;
+    }
+
+    private static int crc32(byte[] b, int off, int len) {
+        CRC32 c = new CRC32();
+        c.update(b, off, len);
+        return (int) c.getValue();
+    }
+
+    private static int le32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+             | (b[off + 3] & 0xff) << 24;
+    }
+
+    /*
+     * The LZ77 window: decoded bytes are written at pos and copied out from
+     * start; pos wraps to 0 once the buffer is full and flushed.
+     */
+    private static final class Dictionary {
+
+        private final byte[] buf;
+        private int start, pos, full, limit;
+        private int pendingLen, pendingDist;    // match cut short by the limit
+
+        Dictionary(int size) {
+            buf = new byte[size];
+        }
+
+        int size() {
+            return buf.length;
+        }
+
+        void reset() {
+            start = pos = full = limit = 0;
+            pendingLen = 0;
+        }
+
+        // allow at most n more bytes before the next flush
+        void setLimit(int n) {
+            if(pos == buf.length) {
+                start = pos = 0;
+            }
+            limit = pos + Math.min(n, buf.length - pos);
+        }
+
+        boolean hasSpace() {
+            return pos < limit;
+        }
+
+        boolean hasPending() {
+            return pendingLen > 0;
+        }
+
+        int getByte(int dist) {
+            int i = pos - dist - 1;
+            return buf[i < 0 ? i + buf.length : i] & 0xff;
+        }
+
+        void putByte(int b) {
+            buf[pos++] = (byte) b;
+            if(full < pos) {
+                full = pos;
+            }
+        }
+
+        // copy len bytes from dist + 1 back, as far as the limit allows
+        void repeat(int dist, int len) throws IOException {
+            if(dist < 0 || dist >= full) {
+                throw new IOException("LZMA distance beyond the dictionary");
+            }
+            int n = Math.min(limit - pos, len);
+            pendingLen = len - n;
+            pendingDist = dist;
+
+            int back = pos - dist - 1;
+            if(back < 0) {
+                back += buf.length;
+            }
+            for(int i=0; i<n; i++) {
+                buf[pos++] = buf[back++];
+                if(back == buf.length) {
+                    back = 0;
+                }
+            }
+            if(full < pos) {
+                full = pos;
+            }
+        }
+
+        void repeatPending() throws IOException {
+            if(pendingLen > 0) {
+                repeat(pendingDist, pendingLen);
+            }
+        }
+
+        // read up to len bytes as they are, as far as the limit allows; return their number
+        int copyUncompressed(DataInputStream in, int len) throws IOException {
+            int n = Math.min(limit - pos, len);
+            in.readFully(buf, pos, n);
+            pos += n;
+            if(full < pos) {
+                full = pos;
+            }
+            return n;
+        }
+
+        // copy the bytes decoded since the last flush to out; return their number
+        int flush(byte[] out, int off) {
+            int n = pos - start;
+            System.arraycopy(buf, start, out, off, n);
+            start = pos;
+            return n;
+        }
+    }
+
+    /*
+     * Range decoder over the compressed bytes of one LZMA chunk
+     */
+    private static final class RangeDecoder {
+
+        private static final int TOP = 1 << 24;
+        private static final int BIT_MODEL_TOTAL = 1 << 11;
+        private static final int MOVE_BITS = 5;
+
+        private final byte[] buf = new byte[1 << 16];
+        private int pos, end;
+        private int range, code;
+
+        void fill(XZInputStream xz, int len) throws IOException {
+            if(len < 5) {
+                throw new IOException("LZMA chunk too short");
+            }
+            xz.readFully(buf, 0, len);
+            if(buf[0] != 0) {
+                throw new IOException("bad LZMA chunk start");
+            }
+            code = ((buf[1] & 0xff) << 24) | ((buf[2] & 0xff) << 16) | ((buf[3] & 0xff) << 8)
+                 | (buf[4] & 0xff);
+            range = 0xffffffff;
+            pos = 5;
+            end = len;
+        }
+
+        void checkFinished() throws IOException {
+            if(pos != end || code != 0) {
+                throw new IOException("LZMA chunk size mismatch");
+            }
+        }
+
+        private void normalize() throws IOException {
+            if((range & 0xff000000) == 0) {
+                if(pos >= end) {
+                    throw new IOException("LZMA chunk overrun");
+                }
+                code = (code << 8) | (buf[pos++] & 0xff);
+                range <<= 8;
+            }
+        }
+
+        int decodeBit(short[] probs, int i) throws IOException {
+            normalize();
+            int p = probs[i];
+            int bound = (range >>> 11) * p;
+            if((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+                range = bound;
+                probs[i] = (short) (p + ((BIT_MODEL_TOTAL - p) >>> MOVE_BITS));
+                return 0;
+            }
+            range -= bound;
+            code -= bound;
+            probs[i] = (short) (p - (p >>> MOVE_BITS));
+            return 1;
+        }
+
+        int decodeBitTree(short[] probs) throws IOException {
+            int symbol = 1;
+            do {
+                symbol = (symbol << 1) | decodeBit(probs, symbol);
+            } while(symbol < probs.length);
+            return symbol - probs.length;
+        }
+
+        int decodeReverseBitTree(short[] probs) throws IOException {
+            int symbol = 1, i = 0, result = 0;
+            do {
+                int bit = decodeBit(probs, symbol);
+                symbol = (symbol << 1) | bit;
+                result |= bit << i++;
+            } while(symbol < probs.length);
+            return result;
+        }
+
+        int decodeDirectBits(int count) throws IOException {
+            int result = 0;
+            do {
+                normalize();
+                range >>>= 1;
+                int t = (code - range) >>> 31;
+                code -= range & (t - 1);
+                result = (result << 1) | (1 - t);
+            } while(--count != 0);
+            return result;
+        }
+    }
+
+    /*
+     * LZMA decoder state and probability models
+     */
+    private static final class Lzma {
+
+        private static final int STATES = 12;
+        private static final int POS_STATES_MAX = 1 << 4;
+        private static final int MATCH_LEN_MIN = 2;
+        private static final int DIST_STATES = 4;
+        private static final int DIST_SLOTS = 1 << 6;
+        private static final int DIST_MODEL_START = 4;
+        private static final int DIST_MODEL_END = 14;
+        private static final int ALIGN_BITS = 4;
+
+        final RangeDecoder rc = new RangeDecoder();
+
+        private int lc, lp, posMask;
+        private int state;
+        private int rep0, rep1, rep2, rep3;
+
+        private short[][] literal;
+        private final short[] isMatch = new short[STATES * POS_STATES_MAX];
+        private final short[] isRep = new short[STATES];
+        private final short[] isRep0 = new short[STATES];
+        private final short[] isRep1 = new short[STATES];
+        private final short[] isRep2 = new short[STATES];
+        private final short[] isRep0Long = new short[STATES * POS_STATES_MAX];
+        private final short[][] distSlots = new short[DIST_STATES][DIST_SLOTS];
+        private final short[][] distSpecial = new short[DIST_MODEL_END - DIST_MODEL_START][];
+        private final short[] distAlign = new short[1 << ALIGN_BITS];
+        private final LengthDecoder matchLen = new LengthDecoder();
+        private final LengthDecoder repLen = new LengthDecoder();
+
+        Lzma() {
+            for(int slot=DIST_MODEL_START; slot<DIST_MODEL_END; slot++) {
+                distSpecial[slot - DIST_MODEL_START] = new short[1 << ((slot >>> 1) - 1)];
+            }
+        }
+
+        void setProperties(int lc, int lp, int pb) {
+            this.lc = lc;
+            this.lp = lp;
+            this.posMask = (1 << pb) - 1;
+            literal = new short[1 << (lc + lp)][0x300];
+        }
+
+        void reset() {
+            state = 0;
+            rep0 = rep1 = rep2 = rep3 = 0;
+            for(short[] p : literal) {
+                init(p);
+            }
+            init(isMatch);
+            init(isRep);
+            init(isRep0);
+            init(isRep1);
+            init(isRep2);
+            init(isRep0Long);
+            for(short[] p : distSlots) {
+                init(p);
+            }
+            for(short[] p : distSpecial) {
+                init(p);
+            }
+            init(distAlign);
+            matchLen.reset();
+            repLen.reset();
+        }
+
+        private static void init(short[] probs) {
+            Arrays.fill(probs, (short) (RangeDecoder.BIT_MODEL_TOTAL / 2));
+        }
+
+        /*
+         * decode into dict until its limit is reached
+         */
+        void decode(Dictionary dict) throws IOException {
+
+            dict.repeatPending();
+
+            while(dict.hasSpace()) {
+                int posState = dict.pos & posMask;
+                int i = (state << 4) + posState;
+
+                if(rc.decodeBit(isMatch, i) == 0) {
+                    decodeLiteral(dict);
+                    continue;
+                }
+
+                int len;
+                if(rc.decodeBit(isRep, state) == 0) {
+                    len = matchLen.decode(rc, posState);
+                    state = state < 7 ? 7 : 10;
+                    rep3 = rep2;
+                    rep2 = rep1;
+                    rep1 = rep0;
+                    rep0 = decodeDistance(len);
+                }
+                else {
+                    if(rc.decodeBit(isRep0, state) == 0) {
+                        if(rc.decodeBit(isRep0Long, i) == 0) {
+                            state = state < 7 ? 9 : 11;
+                            dict.repeat(rep0, 1);
+                            continue;
+                        }
+                    }
+                    else {
+                        int dist;
+                        if(rc.decodeBit(isRep1, state) == 0) {
+                            dist = rep1;
+                        }
+                        else {
+                            if(rc.decodeBit(isRep2, state) == 0) {
+                                dist = rep2;
+                            }
+                            else {
+                                dist = rep3;
+                                rep3 = rep2;
+                            }
+                            rep2 = rep1;
+                        }
+                        rep1 = rep0;
+                        rep0 = dist;
+                    }
+                    len = repLen.decode(rc, posState);
+                    state = state < 7 ? 8 : 11;
+                }
+                dict.repeat(rep0, len);
+            }
+            rc.normalize();
+        }
+
+        private void decodeLiteral(Dictionary dict) throws IOException {
+
+            int prev = dict.full > 0 || dict.pos > 0 ? dict.getByte(0) : 0;
+            int litState = ((dict.pos & ((1 << lp) - 1)) << lc) + (prev >>> (8 - lc));
+            short[] probs = literal[litState];
+            int symbol = 1;
+
+            if(state < 7) {
+                do {
+                    symbol = (symbol << 1) | rc.decodeBit(probs, symbol);
+                } while(symbol < 0x100);
+            }
+            else {
+                int match = dict.getByte(rep0);
+                do {
+                    int matchBit = (match >>> 7) & 1;
+                    match <<= 1;
+                    int bit = rc.decodeBit(probs, ((1 + matchBit) << 8) + symbol);
+                    symbol = (symbol << 1) | bit;
+                    if(matchBit != bit) {
+                        while(symbol < 0x100) {
+                            symbol = (symbol << 1) | rc.decodeBit(probs, symbol);
+                        }
+                        break;
+                    }
+                } while(symbol < 0x100);
+            }
+
+            dict.putByte(symbol & 0xff);
+            state = state < 4 ? 0 : state < 10 ? state - 3 : state - 6;
+        }
+
+        private int decodeDistance(int len) throws IOException {
+
+            int slot = rc.decodeBitTree(distSlots[Math.min(len - MATCH_LEN_MIN, DIST_STATES - 1)]);
+            if(slot < DIST_MODEL_START) {
+                return slot;
+            }
+
+            int limit = (slot >>> 1) - 1;
+            int dist = (2 | (slot & 1)) << limit;
+            if(slot < DIST_MODEL_END) {
+                return dist | rc.decodeReverseBitTree(distSpecial[slot - DIST_MODEL_START]);
+            }
+            dist |= rc.decodeDirectBits(limit - ALIGN_BITS) << ALIGN_BITS;
+            return dist | rc.decodeReverseBitTree(distAlign);
+        }
+    }
+
+    private static final class LengthDecoder {
+
+        private final short[] choice = new short[2];
+        private final short[][] low = new short[Lzma.POS_STATES_MAX][8];
+        private final short[][] mid = new short[Lzma.POS_STATES_MAX][8];
+        private final short[] high = new short[256];
+
+        void reset() {
+            Lzma.init(choice);
+            for(short[] p : low) {
+                Lzma.init(p);
+            }
+            for(short[] p : mid) {
+                Lzma.init(p);
+            }
+            Lzma.init(high);
+        }
+
+        int decode(RangeDecoder rc, int posState) throws IOException {
+            if(rc.decodeBit(choice, 0) == 0) {
+                return rc.decodeBitTree(low[posState]) + Lzma.MATCH_LEN_MIN;
+            }
+            if(rc.decodeBit(choice, 1) == 0) {
+                return rc.decodeBitTree(mid[posState]) + Lzma.MATCH_LEN_MIN + 8;
+            }
+            return rc.decodeBitTree(high) + Lzma.MATCH_LEN_MIN + 16;
+        }
+    }
+}